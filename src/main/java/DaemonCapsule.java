@@ -7,7 +7,12 @@
  * http://www.eclipse.org/legal/epl-v10.html
  */
 
+import co.paralleluniverse.capsule.daemon.ClasspathMerger;
 import co.paralleluniverse.capsule.daemon.DaemonAdapter;
+import co.paralleluniverse.capsule.daemon.DaemonControl;
+import co.paralleluniverse.capsule.daemon.DaemonLauncher;
+import co.paralleluniverse.capsule.daemon.FlightRecordings;
+import co.paralleluniverse.capsule.daemon.SocketActivator;
 
 import java.io.*;
 import java.net.URI;
@@ -16,11 +21,17 @@ import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.file.*;
 import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.jar.Attributes;
 import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -35,6 +46,17 @@ import java.util.regex.Pattern;
 public class DaemonCapsule extends Capsule {
 
     private static final String CONF_FILE = "WindowsServiceCmdline";
+    private static final String CONTROL_FILE = "control";
+    private static final String RUN_DIR = "run";
+    private static final String CLASSPATH_JAR = "classpath.jar";
+    private static final String JVM_OPTIONS_FILE = "jvm.options";
+    private static final String MERGED_CLASSPATH_JAR = "classpath-merged.jar";
+    private static final String PRELOAD_LIST = "preload.lst";
+    // The activator only relays connections, so it's kept small and quick to start
+    private static final List<String> ACTIVATOR_JVM_ARGS = Arrays.asList("-Xmx32m", "-Xss256k", "-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1");
+    // Parsed by the 'java' launcher on its command line only, e.g. '-Xss' sizes the main thread running the daemon
+    private static final String[] LAUNCHER_OPTIONS = new String[]{"-Xss", "-Xms", "-Xmx", "-XX:NativeMemoryTracking=", "-XshowSettings", "-Xdiag", "-Xdock:"};
+    private static final Pattern JAVA_VERSION_PATTERN = Pattern.compile("(?:1\\.)?(\\d+)[^_]*(?:_(\\d+))?.*"); // e.g. 1.8.0_262, 11.0.2
     private static final Pattern CAPSULE_PORT_PATTERN = Pattern.compile("-Dcapsule\\.port=\\d+");
 
     //<editor-fold defaultstate="collapsed" desc="Configuration">
@@ -52,10 +74,66 @@ public class DaemonCapsule extends Capsule {
     private static final String PROP_STDERR_FILE = "capsule.daemon.stderrFile";
     private static final Map.Entry<String, String> ATTR_STDERR_FILE = ATTRIBUTE("Daemon-Stderr-File", T_STRING(), null, true, "stderr (default: /dev/null on Unix, <logpath>/service-stderr.YEAR-MONTH-DAY.log on Windows))");
     private static final String PROP_PID_FILE = "capsule.daemon.pidFile";
-    private static final Map.Entry<String, String> ATTR_PID_FILE = ATTRIBUTE("Daemon-PID-File", T_STRING(), null, true, "PID file (default: /var/run/<appid>.pid on Unix, <logpath>/<appid>.pid on Windows)");
+    private static final Map.Entry<String, String> ATTR_PID_FILE = ATTRIBUTE("Daemon-PID-File", T_STRING(), null, true, "PID file (default: /var/run/<appid>.pid on Unix, /run/<appid>/<appid>.pid in systemd units, <logpath>/<appid>.pid on Windows)");
 
     private static final String PROP_STOP = "capsule.daemon.stop";
 
+    private static final String PROP_JFR = "capsule.daemon.jfr";
+    private static final Map.Entry<String, Boolean> ATTR_JFR = ATTRIBUTE("Daemon-JFR", T_BOOL(), false, true, "Keep a continuous, bounded JDK Flight Recorder recording that is dumped when the service stops, Java 11+ or OpenJDK 8u262+ only (default: false)");
+    private static final String PROP_JFR_MAX_SIZE = "capsule.daemon.jfrMaxSize";
+    private static final Map.Entry<String, String> ATTR_JFR_MAX_SIZE = ATTRIBUTE("Daemon-JFR-Max-Size", T_STRING(), null, true, "Maximum size of the continuous recording (default: 256m)");
+    private static final String PROP_JFR_MAX_AGE = "capsule.daemon.jfrMaxAge";
+    private static final Map.Entry<String, String> ATTR_JFR_MAX_AGE = ATTRIBUTE("Daemon-JFR-Max-Age", T_STRING(), null, true, "Maximum age of the continuous recording (default: 6h)");
+    private static final String PROP_JFR_DIR = "capsule.daemon.jfrDir";
+    private static final Map.Entry<String, String> ATTR_JFR_DIR = ATTRIBUTE("Daemon-JFR-Dir", T_STRING(), null, true, "Directory where recordings are dumped (default: <cache>/daemon/<app id>/jfr)");
+    private static final String PROP_JFR_MAX_FILES = "capsule.daemon.jfrMaxFiles";
+    private static final Map.Entry<String, Long> ATTR_JFR_MAX_FILES = ATTRIBUTE("Daemon-JFR-Max-Files", T_LONG(), null, true, "Maximum number of recordings kept in the dump directory, oldest are deleted first (default: 10)");
+    private static final String PROP_JFR_SNAPSHOT = "capsule.daemon.jfrSnapshot";
+    private static final String PROP_SYSTEMD_UNIT = "capsule.daemon.systemdUnit";
+    private static final String PROP_CONTROL_COMMAND = "capsule.daemon.controlCommand";
+    private static final String PROP_CONTROL = "capsule.daemon.control";
+    private static final Map.Entry<String, Boolean> ATTR_CONTROL = ATTRIBUTE("Daemon-Control", T_BOOL(), false, true, "Open a local diagnostics control channel in the service (default: false, Unix only)");
+
+    private static final String PROP_ARG_FILES = "capsule.daemon.argFiles";
+    private static final Map.Entry<String, Boolean> ATTR_ARG_FILES = ATTRIBUTE("Daemon-Arg-Files", T_BOOL(), false, true, "Pass the classpath through a manifest-only JAR and JVM options through an options file, both cached in the daemon dir (default: false)");
+
+    private static final String PROP_MERGE_CLASSPATH = "capsule.daemon.mergeClasspath";
+    private static final Map.Entry<String, Boolean> ATTR_MERGE_CLASSPATH = ATTRIBUTE("Daemon-Merge-Classpath", T_BOOL(), false, true, "Run the service from a single, uncompressed JAR merging the whole classpath, cached in the daemon dir (default: false)");
+
+    private static final String PROP_PRELOAD_CLASSES = "capsule.daemon.preloadClasses";
+    private static final Map.Entry<String, String> ATTR_PRELOAD_CLASSES = ATTRIBUTE("Daemon-Preload-Classes", T_STRING(), null, true, "Class list, as a capsule resource or a file, loaded in parallel and then initialized in order during the init phase (default: none, Unix only)");
+    private static final String PROP_PRELOAD_RECORD = "capsule.daemon.preloadRecord";
+    private static final Map.Entry<String, Boolean> ATTR_PRELOAD_RECORD = ATTRIBUTE("Daemon-Preload-Record", T_BOOL(), false, true, "Record the classes loaded by each run and preload the previous run's ones if 'Daemon-Preload-Classes' isn't set (default: false, Java 9+)");
+
+    private static final String PROP_WATCHDOG = "capsule.daemon.watchdog";
+    private static final Map.Entry<String, Boolean> ATTR_WATCHDOG = ATTRIBUTE("Daemon-Watchdog", T_BOOL(), false, true, "Halt the service, after capturing diagnostics, when it stalls, deadlocks or thrashes in GC (default: false, Unix only)");
+    private static final String PROP_WATCHDOG_STALL_MILLIS = "capsule.daemon.watchdogStallMillis";
+    private static final Map.Entry<String, Long> ATTR_WATCHDOG_STALL_MILLIS = ATTRIBUTE("Daemon-Watchdog-Stall-Millis", T_LONG(), null, true, "Watchdog heartbeat stall threshold in milliseconds (default: 10000, Unix only)");
+    private static final String PROP_WATCHDOG_GC_PERCENT = "capsule.daemon.watchdogGcPercent";
+    private static final Map.Entry<String, Long> ATTR_WATCHDOG_GC_PERCENT = ATTRIBUTE("Daemon-Watchdog-GC-Percent", T_LONG(), null, true, "Watchdog threshold of the percentage of time spent in stop-the-world GC pauses (default: 90, Unix only)");
+    private static final String PROP_WATCHDOG_GC_WINDOW_SECS = "capsule.daemon.watchdogGcWindowSecs";
+    private static final Map.Entry<String, Long> ATTR_WATCHDOG_GC_WINDOW_SECS = ATTRIBUTE("Daemon-Watchdog-GC-Window-Secs", T_LONG(), null, true, "Watchdog window in seconds over which the time spent in GC is measured (default: 60, Unix only)");
+    private static final String PROP_WATCHDOG_EXIT_CODE = "capsule.daemon.watchdogExitCode";
+    private static final Map.Entry<String, Long> ATTR_WATCHDOG_EXIT_CODE = ATTRIBUTE("Daemon-Watchdog-Exit-Code", T_LONG(), null, true, "Exit code of the service when halted by the watchdog (default: 123, which makes jsvc but not the java backend restart it, Unix only)");
+
+    private static final String PROP_WARM_STATE = "capsule.daemon.warmState";
+    private static final Map.Entry<String, Boolean> ATTR_WARM_STATE = ATTRIBUTE("Daemon-Warm-State", T_BOOL(), false, true, "Let the service keep warm state, e.g. cache snapshots, across restarts and versions through 'DaemonAdapter' (default: false)");
+    private static final String PROP_WARM_STATE_DIR = "capsule.daemon.warmStateDir";
+    private static final Map.Entry<String, String> ATTR_WARM_STATE_DIR = ATTRIBUTE("Daemon-Warm-State-Dir", T_STRING(), null, true, "Directory of the warm state files (default: <cache>/daemon/state/<app name>, or <app class> without an app name)");
+
+    private static final String PROP_SOCKET = "capsule.daemon.socket";
+    private static final Map.Entry<String, String> ATTR_SOCKET = ATTRIBUTE("Daemon-Socket", T_STRING(), null, true, "Address, as [host:]port, of the service's listening socket obtained through 'DaemonAdapter.activationChannel()'; systemd units get a matching socket unit starting the service upon the first connection (default: none)");
+    private static final String PROP_SOCKET_RELAY = "capsule.daemon.socketRelay";
+    private static final Map.Entry<String, Boolean> ATTR_SOCKET_RELAY = ATTRIBUTE("Daemon-Socket-Relay", T_BOOL(), false, true, "Start the service upon the first connection by relaying connections to it from an activator owning the socket (default: false, 'java' backend only)");
+    private static final String PROP_IDLE_SECS = "capsule.daemon.idleSecs";
+    private static final Map.Entry<String, Long> ATTR_IDLE_SECS = ATTRIBUTE("Daemon-Idle-Secs", T_LONG(), null, true, "Seconds without connections after which a socket-activated service stops until the next connection (default: none, systemd units and 'Daemon-Socket-Relay' only)");
+
+    private static final String PROP_TRACE = "capsule.daemon.trace";
+    private static final String PROP_TRACE_FILE = "capsule.daemon.traceFile";
+
+    private static final String PROP_BACKEND = "capsule.daemon.backend";
+    private static final Map.Entry<String, String> ATTR_BACKEND = ATTRIBUTE("Daemon-Backend", T_STRING(), null, true, "The Unix daemon backend, either 'jsvc' or 'java' (default: jsvc, Unix only)");
+
     // Windows only
     private static final String PROP_PASSWORD = "capsule.daemon.password";
     private static final Map.Entry<String, String> ATTR_PASSWORD = ATTRIBUTE("Daemon-Password", T_STRING(), null, true, "The password of the user under which the service will run (default: none, Windows only)");
@@ -68,7 +146,7 @@ public class DaemonCapsule extends Capsule {
     private static final String PROP_DISPLAY_NAME = "capsule.daemon.displayName";
     private static final Map.Entry<String, String> ATTR_DISPLAY_NAME = ATTRIBUTE("Daemon-Display-Name", T_STRING(), null, true, "The service display name (default: app ID, Windows only)");
     private static final String PROP_DESCRIPTION = "capsule.daemon.description";
-    private static final Map.Entry<String, String> ATTR_DESCRIPTION = ATTRIBUTE("Daemon-Description", T_STRING(), null, true, "The service description (default: app ID, Windows only)");
+    private static final Map.Entry<String, String> ATTR_DESCRIPTION = ATTRIBUTE("Daemon-Description", T_STRING(), null, true, "The service description (default: app ID, Windows and systemd units only)");
     private static final String PROP_STARTUP = "capsule.daemon.startup";
     private static final Map.Entry<String, String> ATTR_STARTUP = ATTRIBUTE("Daemon-Startup", T_STRING(), null, true, "The service startup mode, either 'auto' or 'manual' (default: manual, Windows only)");
     private static final String PROP_TYPE = "capsule.daemon.type";
@@ -78,7 +156,7 @@ public class DaemonCapsule extends Capsule {
     private static final String PROP_STOP_PARAMS = "capsule.daemon.stopParams";
     private static final Map.Entry<String, List<String>> ATTR_STOP_PARAMS = ATTRIBUTE("Daemon-Stop-Params", T_LIST(T_STRING()), null, true, "The service stop parameters (default: none, Windows only)");
     private static final String PROP_STOP_TIMEOUT = "capsule.daemon.stopTimeout";
-    private static final Map.Entry<String, Long> ATTR_STOP_TIMEOUT = ATTRIBUTE("Daemon-Stop-Timeout", T_LONG(), null, true, "Service stop timeout in seconds (default: none, Windows only)");
+    private static final Map.Entry<String, Long> ATTR_STOP_TIMEOUT = ATTRIBUTE("Daemon-Stop-Timeout", T_LONG(), null, true, "Service stop timeout in seconds (default: none, Windows and systemd units only)");
     private static final String PROP_LOG_PATH = "capsule.daemon.logPath";
     private static final Map.Entry<String, String> ATTR_LOG_PATH = ATTRIBUTE("Daemon-Log-Path", T_STRING(), null, true, "The log path (default: %SystemRoot%\\System32\\LogFiles\\Apache, Windows only)");
     private static final String PROP_LOG_PREFIX = "capsule.daemon.logPrefix";
@@ -92,6 +170,15 @@ public class DaemonCapsule extends Capsule {
     private static final String PROP_VERBOSE = "capsule.daemon.verbose";
     private static final String PROP_JSVC = "capsule.daemon.jsvc";
 
+    private static final String BACKEND_JSVC = "jsvc";
+    private static final String BACKEND_JAVA = "java";
+    private static final String[] SETSID_PATHS = new String[]{"/usr/bin/setsid", "/bin/setsid"};
+
+    private static final String DEFAULT_JFR_MAX_SIZE = "256m";
+    private static final String DEFAULT_JFR_MAX_AGE = "6h";
+    private static final long DEFAULT_JFR_MAX_FILES = 10;
+    private static final long DEFAULT_STOP_WAIT_SECS = 60; // As long as 'jsvc -stop' waits
+
     private static final Map.Entry<String, String> ATTR_INIT_CLASS = ATTRIBUTE("Init-Class", T_STRING(), null, true, "Class containing the init method (default: none, Unix only)");
     private static final Map.Entry<String, String> ATTR_INIT_METHOD = ATTRIBUTE("Init-Method", T_STRING(), null, true, "Static 'String[] -> String[]' service initialization method short name run as 'root'; the return value will be passed to the 'Start' method (default: none, Unix only)");
     private static final Map.Entry<String, String> ATTR_DESTROY_CLASS = ATTRIBUTE("Destroy-Class", T_STRING(), null, true, "Class containing the destroy method (default: none, Unix only)");
@@ -101,7 +188,7 @@ public class DaemonCapsule extends Capsule {
     private static final String PROP_KEEP_STDIN = "capsule.daemon.keepStdin";
     private static final Map.Entry<String, Boolean> ATTR_KEEP_STDIN = ATTRIBUTE("Keep-Stdin", T_BOOL(), false, true, "Don't redirect stdin to /dev/null (default: false, Unix only)");
     private static final String PROP_WAIT_SECS = "capsule.daemon.waitSecs";
-    private static final Map.Entry<String, Long> ATTR_WAIT_SECS = ATTRIBUTE("Wait-Secs", T_LONG(), null, true, "Wait seconds for service, must be multiple of 10 (default: 10 secs, Unix only)");
+    private static final Map.Entry<String, Long> ATTR_WAIT_SECS = ATTRIBUTE("Wait-Secs", T_LONG(), null, true, "Wait seconds for service, must be multiple of 10; with the java backend, also for the service to stop (default: 10 secs, 60 secs when stopping, Unix only)");
     //</editor-fold>
 
     private static Path hostAbsoluteOwnJarFile;
@@ -110,19 +197,28 @@ public class DaemonCapsule extends Capsule {
     private Map<String, String> env;
     private String appClass;
 
+    private final long traceStart = System.nanoTime();
+    private final Map<String, Long> traceNanos = new LinkedHashMap<>();
+    private final List<long[]> traceUnclaimed = new ArrayList<>(); // {start, elapsed} of phases not yet nested in a parent
+    private long prelaunchEnd;
+
     public DaemonCapsule(Capsule pred) {
         super(pred);
     }
 
     @Override
     protected Path getJavaExecutable() {
+        if (isJavaBackend())
+            return super.getJavaExecutable();
         if (svcExec == null) {
             if (isUnix()) {
                 final String systemJsvc = getProperty(PROP_JSVC);
                 if (systemJsvc != null)
                     return (svcExec = Paths.get(systemJsvc));
             }
+            final long t = System.nanoTime();
             svcExec = setupBinDir().resolve(platformExecPath()).toAbsolutePath().normalize();
+            trace("setupBinDir", t);
         }
         return svcExec;
     }
@@ -141,6 +237,17 @@ public class DaemonCapsule extends Capsule {
             cp.add(findOwnJarFile().toAbsolutePath().normalize());
             return (T) cp;
         }
+        if (ATTR_JVM_ARGS == attr) {
+            final List<String> jvmArgs = new ArrayList<>(super.attribute(ATTR_JVM_ARGS));
+            final long t = System.nanoTime();
+            try {
+                jvmArgs.addAll(daemonJvmArgs());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            trace("daemonJvmArgs", t);
+            return (T) jvmArgs;
+        }
 //		if (ATTR_APP_CLASS == attr)
 //			return (T) DaemonAdapter.class.getName();
         return super.attribute(attr);
@@ -148,22 +255,115 @@ public class DaemonCapsule extends Capsule {
 
     @Override
     protected final ProcessBuilder prelaunch(List<String> jvmArgs, List<String> args) {
+        try {
+            return prelaunch0(jvmArgs, args);
+        } finally {
+            prelaunchEnd = System.nanoTime();
+        }
+    }
+
+    private ProcessBuilder prelaunch0(List<String> jvmArgs, List<String> args) {
+        long t = System.nanoTime();
         final ProcessBuilder pb = super.prelaunch(jvmArgs, args);
+        trace("capsulePrelaunch", t);
+
         final List<String> svcCmd;
         try {
-            svcCmd = isStop() ? toSvcStop(pb.command()) : toSvc(pb.command());
+            if (isJfrSnapshot())
+                return new ProcessBuilder(jfrSnapshotCmd()).inheritIO();
+            if (getControlCommand() != null)
+                return new ProcessBuilder(controlCmd(getControlCommand())).inheritIO();
+            List<String> cmd = pb.command();
+            if (!isStop() && getPropertyOrAttributeBool(PROP_MERGE_CLASSPATH, ATTR_MERGE_CLASSPATH)) {
+                t = System.nanoTime();
+                cmd = toMergedClasspath(cmd);
+                trace("mergeClasspath", t);
+            }
+            if (!isStop() && getPropertyOrAttributeBool(PROP_ARG_FILES, ATTR_ARG_FILES)) {
+                t = System.nanoTime();
+                cmd = toArgFiles(cmd);
+                trace("argFiles", t);
+            }
+            if (isSystemdUnit()) {
+                final List<String> cat = new ArrayList<>();
+                cat.add("cat");
+                for (final Path unit : writeSystemdUnits(pb, cmd))
+                    cat.add(unit.toString());
+                return new ProcessBuilder(cat).inheritIO();
+            }
+            svcCmd = isStop() ? toSvcStop(cmd) : toSvc(cmd);
         } catch (final IOException e) {
             throw new RuntimeException(e);
         }
-        return new ProcessBuilder(svcCmd);
+        final ProcessBuilder ret = new ProcessBuilder(svcCmd);
+        if (!isStop() && isJavaBackend())
+            setupJavaProcess(pb, ret);
+        return ret;
     }
 
     private boolean isStop() {
         return emptyOrTrue(System.getProperty(PROP_STOP));
     }
 
+    private boolean isStart() {
+        return !isStop() && !isJfrSnapshot() && getControlCommand() == null && !isSystemdUnit();
+    }
+
+    private boolean isJfrSnapshot() {
+        return emptyOrTrue(System.getProperty(PROP_JFR_SNAPSHOT));
+    }
+
+    private boolean isSystemdUnit() {
+        final String unit = System.getProperty(PROP_SYSTEMD_UNIT);
+        return unit != null && !"false".equals(unit);
+    }
+
+    /**
+     * Whether the service is socket-activated through the {@link SocketActivator activator}'s relay.
+     */
+    private boolean isSocketRelay() {
+        return isJavaBackend() && !isSystemdUnit() && getPropertyOrAttributeString(PROP_SOCKET, ATTR_SOCKET) != null
+            && getPropertyOrAttributeBool(PROP_SOCKET_RELAY, ATTR_SOCKET_RELAY);
+    }
+
+    private String getControlCommand() {
+        final String cmd = System.getProperty(PROP_CONTROL_COMMAND);
+        return cmd != null && !cmd.isEmpty() ? cmd : null;
+    }
+
+    private boolean isJavaBackend() {
+        if (isWindows())
+            return false;
+        final String backend = getPropertyOrAttributeString(PROP_BACKEND, ATTR_BACKEND);
+        if (backend == null || BACKEND_JSVC.equals(backend))
+            return false;
+        if (BACKEND_JAVA.equals(backend))
+            return true;
+        throw new IllegalArgumentException("Unknown daemon backend '" + backend + "', must be either '" + BACKEND_JSVC + "' or '" + BACKEND_JAVA + "'");
+    }
+
     @Override
     protected Process postlaunch(Process child) {
+        trace("spawn", prelaunchEnd);
+        final long t = System.nanoTime();
+        try {
+            return postlaunch0(child);
+        } finally {
+            trace("postlaunch", t);
+            reportTrace();
+        }
+    }
+
+    private Process postlaunch0(Process child) {
+        if (isJfrSnapshot() || getControlCommand() != null || isSystemdUnit())
+            return child; // Wait for the dump, the control command or the unit output to complete
+        if (isStop() && isJavaBackend())
+            waitJavaDaemonStop(child); // Behave like 'jsvc -stop', so that a start can follow right away
+        else if (isJavaBackend()) {
+            if (getPropertyOrAttributeBool(PROP_NO_DETACH, ATTR_NO_DETACH))
+                return child; // Behave like 'jsvc -nodetach' and keep waiting for the daemon
+            waitJavaDaemon(child);
+        }
         return null; // Don't wait for the child: the management of the service application is delegated to 'jsvc'/'procrun'
     }
 
@@ -220,17 +420,34 @@ public class DaemonCapsule extends Capsule {
     }
 
     private List<String> toSvcStop(List<String> command) throws IOException {
-        if (isWindows())
-            return stopWindowsCmd();
-        else
-            return setupUnixCmd(command, true);
+        final long t = System.nanoTime();
+        try {
+            if (isWindows())
+                return stopWindowsCmd();
+            else if (isJavaBackend())
+                return stopJavaCmd();
+            else
+                return setupUnixCmd(command, true);
+        } finally {
+            trace("stopCmd", t);
+        }
     }
 
     private List<String> toSvc(List<String> cmd) throws IOException {
-        if (isWindows())
-            return setupWindowsCmd(cmd);
-        else
-            return setupUnixCmd(cmd);
+        final long t = System.nanoTime();
+        if (isWindows()) {
+            final List<String> ret = setupWindowsCmd(cmd);
+            trace("setupWindowsCmd", t);
+            return ret;
+        } else if (isJavaBackend()) {
+            final List<String> ret = setupJavaCmd(cmd);
+            trace("setupJavaCmd", t);
+            return ret;
+        } else {
+            final List<String> ret = setupUnixCmd(cmd);
+            trace("setupUnixCmd", t);
+            return ret;
+        }
     }
 
     private List<String> stopWindowsCmd() throws IOException {
@@ -382,7 +599,11 @@ public class DaemonCapsule extends Capsule {
         installCmd.add(i, doubleQuote(join(jvmOpts, ";")));
 
         final String installCmdline = join(installCmd, " ");
-        if (isReinstallNeeded(installCmdline)) {
+        final long t = System.nanoTime();
+        final boolean reinstall = isReinstallNeeded(installCmdline);
+        trace("reinstallCheck", t);
+        if (reinstall) {
+            final long tr = System.nanoTime();
             // Write new install cmdline
             log(LOG_VERBOSE, "Windows: service " + svcName + " needs re-installation, writing cmdline in " + getCmdlineFile().toString());
             dump(installCmdline, getCmdlineFile());
@@ -411,6 +632,7 @@ public class DaemonCapsule extends Capsule {
             } catch (InterruptedException | IOException e) {
                 throw new RuntimeException(e);
             }
+            trace("serviceReinstall", tr);
         }
 
         // Return command for service start
@@ -421,6 +643,186 @@ public class DaemonCapsule extends Capsule {
         return ret;
     }
 
+    private List<String> toMergedClasspath(List<String> cmd) throws IOException {
+        final List<String> ret = new ArrayList<>(cmd);
+        final int appClassIdx = ret.indexOf(getAppClass());
+        for (int i = 1; i < appClassIdx - 1; i++) {
+            if ("-cp".equals(ret.get(i)) || "-classpath".equals(ret.get(i))) {
+                final List<Path> inputs = new ArrayList<>();
+                for (final String e : ret.get(i + 1).split(File.pathSeparator)) {
+                    if (!e.isEmpty())
+                        inputs.add(Paths.get(e));
+                }
+                final Path merged = getAppDaemonDir().resolve(MERGED_CLASSPATH_JAR);
+                if (ClasspathMerger.merge(inputs, merged))
+                    log(LOG_VERBOSE, "Merged " + inputs.size() + " classpath entries into " + merged);
+                ret.set(i + 1, merged.toString());
+                break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Moves the classpath to a manifest-only JAR and, if the JVM supports {@code -XX:VMOptionsFile} (Java 9+), the
+     * {@code -D}/{@code -X} options to an options file, except those the {@code java} launcher parses itself; both are
+     * only rewritten when their content changes.
+     */
+    private List<String> toArgFiles(List<String> cmd) throws IOException {
+        final boolean optionsFile = isJava9OrLater(); // -XX:VMOptionsFile is supported since Java 9
+        if (!optionsFile)
+            log(LOG_VERBOSE, "JVM in " + getJavaHome() + " doesn't support options files, only the classpath will be moved to " + CLASSPATH_JAR);
+
+        final List<String> ret = new ArrayList<>();
+        final List<String> jvmOpts = new ArrayList<>();
+        final int appClassIdx = cmd.indexOf(getAppClass());
+        ret.add(cmd.get(0));
+        for (int i = 1; i < appClassIdx; i++) {
+            final String c = cmd.get(i);
+            if (("-cp".equals(c) || "-classpath".equals(c)) && i + 1 < appClassIdx) {
+                ret.add(c);
+                ret.add(writeClasspathJar(cmd.get(++i)).toString());
+            } else if (optionsFile && (c.startsWith("-D") || c.startsWith("-X")) && !CAPSULE_PORT_PATTERN.matcher(c).matches() && !isLauncherOption(c))
+                jvmOpts.add(c);
+            else
+                ret.add(c);
+        }
+        if (!jvmOpts.isEmpty())
+            ret.add(1, "-XX:VMOptionsFile=" + writeJvmOptionsFile(jvmOpts));
+        ret.addAll(cmd.subList(appClassIdx, cmd.size()));
+        return ret;
+    }
+
+    private static boolean isLauncherOption(String o) {
+        for (final String p : LAUNCHER_OPTIONS) {
+            if (o.startsWith(p))
+                return true;
+        }
+        return false;
+    }
+
+    private Path writeClasspathJar(String classpath) throws IOException {
+        final StringBuilder cp = new StringBuilder();
+        for (final String e : classpath.split(File.pathSeparator)) {
+            if (!e.isEmpty())
+                cp.append(cp.length() > 0 ? " " : "").append(Paths.get(e).toAbsolutePath().normalize().toUri().toString());
+        }
+
+        final Path jar = getAppDaemonDir().resolve(CLASSPATH_JAR);
+        if (Files.exists(jar)) {
+            final Manifest current = getManifest(jar);
+            if (current != null && cp.toString().equals(current.getMainAttributes().getValue(Attributes.Name.CLASS_PATH)))
+                return jar;
+        }
+
+        log(LOG_VERBOSE, "Writing classpath JAR " + jar);
+        final Manifest m = new Manifest();
+        m.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        m.getMainAttributes().put(Attributes.Name.CLASS_PATH, cp.toString());
+        final Path tmp = jar.resolveSibling(CLASSPATH_JAR + ".tmp");
+        try (final JarOutputStream out = new JarOutputStream(Files.newOutputStream(tmp), m)) {
+            out.flush();
+        }
+        Files.move(tmp, jar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return jar;
+    }
+
+    private Path writeJvmOptionsFile(List<String> opts) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for (final String o : opts)
+            sb.append(quoteJvmOption(o)).append('\n');
+        final byte[] content = sb.toString().getBytes(Charset.forName("UTF-8"));
+
+        final Path f = getAppDaemonDir().resolve(JVM_OPTIONS_FILE);
+        if (Files.exists(f) && Arrays.equals(content, Files.readAllBytes(f)))
+            return f;
+
+        log(LOG_VERBOSE, "Writing JVM options file " + f);
+        final Path tmp = f.resolveSibling(JVM_OPTIONS_FILE + ".tmp");
+        Files.write(tmp, content);
+        Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return f;
+    }
+
+    /**
+     * Options files have no escapes but adjacent quoted parts make a single option, so single quotes are double-quoted
+     * and anything else needing quotes is single-quoted.
+     */
+    private static String quoteJvmOption(String o) {
+        boolean needsQuotes = o.isEmpty();
+        for (int i = 0; i < o.length() && !needsQuotes; i++) {
+            final char c = o.charAt(i);
+            needsQuotes = Character.isWhitespace(c) || c == '\'' || c == '"';
+        }
+        if (!needsQuotes)
+            return o;
+
+        final StringBuilder sb = new StringBuilder();
+        boolean inSingle = false;
+        for (int i = 0; i < o.length(); i++) {
+            final char c = o.charAt(i);
+            if (c == '\'') {
+                if (inSingle)
+                    sb.append('\'');
+                inSingle = false;
+                sb.append("\"'\"");
+            } else {
+                if (!inSingle)
+                    sb.append('\'');
+                inSingle = true;
+                sb.append(c);
+            }
+        }
+        if (inSingle || o.isEmpty())
+            sb.append(o.isEmpty() ? "''" : "'");
+        return sb.toString();
+    }
+
+    private boolean isJava9OrLater() {
+        final String version = getJavaRelease("JAVA_VERSION");
+        return version != null && !version.startsWith("1.");
+    }
+
+    /**
+     * Whether the target JVM can start a flight recording without commercial features: Java 11+ or OpenJDK 8u262+, while
+     * Oracle's JDK 7 to 10 need '-XX:+UnlockCommercialFeatures' and other Java 7 JVMs don't have it at all. Otherwise the
+     * JVM would refuse to start.
+     */
+    private boolean isFlightRecorderAvailable() {
+        final String version = getJavaRelease("JAVA_VERSION");
+        final Matcher m = version != null ? JAVA_VERSION_PATTERN.matcher(version) : null;
+        boolean ret = false;
+        if (m != null && m.matches()) {
+            final int major = Integer.parseInt(m.group(1));
+            final int update = m.group(2) != null ? Integer.parseInt(m.group(2)) : 0;
+            ret = major >= 11 || (major == 8 && update >= 262 && !"Oracle Corporation".equals(getJavaRelease("IMPLEMENTOR")));
+        }
+        if (!ret)
+            log(LOG_QUIET, "WARNING: The target JVM (" + (version != null ? version : "unknown version") + ") can't start a flight recording without commercial features, it needs Java 11+ or OpenJDK 8u262+; not recording");
+        return ret;
+    }
+
+    /**
+     * A property of the target JVM's 'release' file, or {@code null} if unknown.
+     */
+    private String getJavaRelease(String name) {
+        final Path javaHome = getJavaHome().toAbsolutePath().normalize();
+        Path release = javaHome.resolve("release");
+        if (!Files.exists(release) && javaHome.getParent() != null)
+            release = javaHome.getParent().resolve("release"); // JDK 8 layout
+        if (!Files.exists(release))
+            return null;
+        try {
+            for (final String l : Files.readAllLines(release, Charset.defaultCharset())) {
+                if (l.startsWith(name + "="))
+                    return l.substring(name.length() + 1).replace("\"", "").trim();
+            }
+        } catch (IOException e) {
+            log(LOG_VERBOSE, "WARNING: Could not read " + release + ": " + e.getMessage());
+        }
+        return null;
+    }
+
     private boolean isReinstallNeeded(String cmdLine) throws IOException {
         // Check if the conf file exists
         if (!Files.exists(getCmdlineFile())) {
@@ -464,6 +866,40 @@ public class DaemonCapsule extends Capsule {
         return ret;
     }
 
+    /**
+     * The directory of the files belonging to this application's service, as the daemon dir is shared by all capsules.
+     */
+    private Path getAppDaemonDir() throws IOException {
+        final Path ret = getDaemonDir().resolve(getAppId());
+        if (!Files.exists(ret))
+            Files.createDirectories(ret);
+        return ret;
+    }
+
+    /**
+     * A directory of this application's service the service itself can write to, also when it runs as 'Daemon-User'
+     * while the launcher (and so the Capsule cache) belongs to another user, e.g. root.
+     */
+    private Path getServiceDir(String name) throws IOException {
+        return ownedByService(getAppDaemonDir().resolve(name));
+    }
+
+    private Path ownedByService(Path dir) throws IOException {
+        if (!Files.exists(dir))
+            Files.createDirectories(dir);
+        final String user = getPropertyOrAttributeString(PROP_USER, ATTR_USER);
+        if (user != null && !isWindows()) {
+            try {
+                final UserPrincipal owner = dir.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(user);
+                if (!owner.equals(Files.getOwner(dir)))
+                    Files.setOwner(dir, owner);
+            } catch (IOException | UnsupportedOperationException e) {
+                log(LOG_QUIET, "WARNING: Could not make " + dir + " owned by the service user " + user + ": " + e);
+            }
+        }
+        return dir;
+    }
+
     private Path getCmdlineFile() throws IOException {
         return getDaemonDir().resolve(CONF_FILE);
     }
@@ -486,6 +922,12 @@ public class DaemonCapsule extends Capsule {
         return pos;
     }
 
+    private void addPropertyOrAttributeLongAsProperty(List<String> outCmd, String prop, Map.Entry<String, Long> attr, String outPropKey) {
+        final Long v = getPropertyOrAttributeLong(prop, attr);
+        if (v != null)
+            outCmd.add("-D" + outPropKey + "=" + v);
+    }
+
     private int addAttributeStringAsProperty(List<String> outCmd, Map.Entry<String, String> inAttr, String outPropKey, int pos) {
         final String v = getAttribute(inAttr);
         if (v != null)
@@ -573,8 +1015,7 @@ public class DaemonCapsule extends Capsule {
         }
 
         ret.add(i++, "-pidfile");
-        final String pid = getPropertyOrAttributeString(PROP_PID_FILE, ATTR_PID_FILE);
-        ret.add(i++, pid != null ? pid : "/var/run/" + getAppId() + ".pid");
+        ret.add(i++, getUnixPidFile());
 
         if (stop) {
             ret.add(i++, "-stop");
@@ -588,25 +1029,443 @@ public class DaemonCapsule extends Capsule {
             }
         }
 
-        i = addAttributeStringAsProperty(ret, ATTR_INIT_CLASS, DaemonAdapter.PROP_INIT_CLASS, i);
-        i = addAttributeStringAsProperty(ret, ATTR_INIT_METHOD, DaemonAdapter.PROP_INIT_METHOD, i);
+        addAdapterProperties(ret, DaemonAdapter.class.getName(), i);
+
+        return ret;
+    }
+
+    private int addAdapterProperties(List<String> cmd, String mainClass, int i) {
+        i = addAttributeStringAsProperty(cmd, ATTR_INIT_CLASS, DaemonAdapter.PROP_INIT_CLASS, i);
+        i = addAttributeStringAsProperty(cmd, ATTR_INIT_METHOD, DaemonAdapter.PROP_INIT_METHOD, i);
 
         // TODO Not nicest but redefining ATTR_APP_CLASS seems to break a lot of stuff, see https://github.com/puniverse/capsule/issues/82
         final String startC = getAttribute(ATTR_START_CLASS);
-        final int appClassIdx = ret.indexOf(getAppClass());
-        final String appClass = ret.remove(appClassIdx);
-        ret.add(appClassIdx, DaemonAdapter.class.getName());
-        ret.add(i++, "-D" + DaemonAdapter.PROP_START_CLASS + "=" + (startC != null ? startC : appClass));
+        final int appClassIdx = cmd.indexOf(getAppClass());
+        final String appClass = cmd.remove(appClassIdx);
+        cmd.add(appClassIdx, mainClass);
+        cmd.add(i++, "-D" + DaemonAdapter.PROP_START_CLASS + "=" + (startC != null ? startC : appClass));
 
         final String startM = getAttribute(ATTR_START_METHOD);
-        ret.add(i++, "-D" + DaemonAdapter.PROP_START_METHOD + "=" + (startM != null ? startM : "main"));
-        i = addAttributeStringAsProperty(ret, ATTR_STOP_CLASS, DaemonAdapter.PROP_STOP_METHOD, i);
-        i = addAttributeStringAsProperty(ret, ATTR_DESTROY_CLASS, DaemonAdapter.PROP_DESTROY_CLASS, i);
-        addAttributeStringAsProperty(ret, ATTR_DESTROY_METHOD, DaemonAdapter.PROP_DESTROY_METHOD, i);
+        cmd.add(i++, "-D" + DaemonAdapter.PROP_START_METHOD + "=" + (startM != null ? startM : "main"));
+        i = addAttributeStringAsProperty(cmd, ATTR_STOP_CLASS, DaemonAdapter.PROP_STOP_CLASS, i);
+        i = addAttributeStringAsProperty(cmd, ATTR_STOP_METHOD, DaemonAdapter.PROP_STOP_METHOD, i);
+        i = addAttributeStringAsProperty(cmd, ATTR_DESTROY_CLASS, DaemonAdapter.PROP_DESTROY_CLASS, i);
+        return addAttributeStringAsProperty(cmd, ATTR_DESTROY_METHOD, DaemonAdapter.PROP_DESTROY_METHOD, i);
+    }
+
+    private String getUnixPidFile() {
+        final String pid = getPropertyOrAttributeString(PROP_PID_FILE, ATTR_PID_FILE);
+        if (pid != null)
+            return pid;
+        // Systemd units get a runtime directory owned by the service user, who can't write to /var/run
+        return isSystemdUnit() ? "/run/" + getAppId() + "/" + getAppId() + ".pid" : "/var/run/" + getAppId() + ".pid";
+    }
+
+    private List<String> setupJavaCmd(List<String> cmd) {
+        if (getPropertyOrAttributeString(PROP_USER, ATTR_USER) != null)
+            throw new UnsupportedOperationException("The '" + BACKEND_JAVA + "' daemon backend can't switch user, please launch it as the service user instead");
+        return javaDaemonCmd(cmd, !getPropertyOrAttributeBool(PROP_NO_DETACH, ATTR_NO_DETACH));
+    }
+
+    private List<String> javaDaemonCmd(List<String> cmd, boolean detach) {
+        final List<String> daemonCmd = new ArrayList<>(cmd);
+        daemonCmd.add(1, "-D" + DaemonLauncher.PROP_PID_FILE + "=" + getServicePidFile()); // Right after the Java executable
+        addAdapterProperties(daemonCmd, DaemonLauncher.class.getName(), 2);
+
+        final List<String> ret = new ArrayList<>();
+        final String setsid = detach ? findSetsid() : null;
+        if (setsid != null)
+            ret.add(setsid);
+        if (isSocketRelay()) {
+            ret.add(cmd.get(0));
+            ret.addAll(ACTIVATOR_JVM_ARGS);
+            ret.add("-cp");
+            ret.add(findOwnJarFile().toString());
+            ret.add("-D" + DaemonLauncher.PROP_PID_FILE + "=" + getUnixPidFile());
+            ret.add("-D" + DaemonAdapter.PROP_SOCKET + "=" + getPropertyOrAttributeString(PROP_SOCKET, ATTR_SOCKET));
+            addPropertyOrAttributeLongAsProperty(ret, PROP_IDLE_SECS, ATTR_IDLE_SECS, DaemonAdapter.PROP_IDLE_SECS);
+            ret.add(SocketActivator.class.getName());
+        }
+        ret.addAll(daemonCmd);
+
+        return ret;
+    }
+
+    private void setupJavaProcess(ProcessBuilder capsulePb, ProcessBuilder pb) {
+        pb.environment().putAll(capsulePb.environment());
+
+        final String cwd = getPropertyOrAttributeString(PROP_CWD, ATTR_CWD);
+        pb.directory(new File(cwd != null ? cwd : "/"));
+
+        final String stdout = getPropertyOrAttributeString(PROP_STDOUT_FILE, ATTR_STDOUT_FILE);
+        pb.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(stdout != null ? stdout : "/dev/null")));
+        final String stderr = getPropertyOrAttributeString(PROP_STDERR_FILE, ATTR_STDERR_FILE);
+        pb.redirectError(ProcessBuilder.Redirect.appendTo(new File(stderr != null ? stderr : "/dev/null")));
+        if (getPropertyOrAttributeBool(PROP_KEEP_STDIN, ATTR_KEEP_STDIN))
+            pb.redirectInput(ProcessBuilder.Redirect.INHERIT);
+        else
+            pb.redirectInput(new File("/dev/null"));
+    }
+
+    private void waitJavaDaemon(Process child) {
+        final Long wait = getPropertyOrAttributeLong(PROP_WAIT_SECS, ATTR_WAIT_SECS);
+        if (wait == null)
+            return;
+
+        final Path pidFile = Paths.get(getUnixPidFile());
+        final long deadline = System.currentTimeMillis() + wait * 1000;
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                if (DaemonLauncher.readPid(pidFile) != null) {
+                    log(LOG_VERBOSE, "Daemon started, PID file " + pidFile + " locked");
+                    return;
+                }
+                final Integer exitCode = exitValue(child);
+                if (exitCode != null)
+                    throw new RuntimeException("Daemon exited during startup with code " + exitCode);
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException | IOException e) {
+            throw new RuntimeException(e);
+        }
+        log(LOG_QUIET, "WARNING: Daemon didn't write PID file " + pidFile + " within " + wait + " seconds");
+    }
+
+    private void waitJavaDaemonStop(Process kill) {
+        final Long wait = getPropertyOrAttributeLong(PROP_WAIT_SECS, ATTR_WAIT_SECS);
+        final long waitSecs = wait != null ? wait : DEFAULT_STOP_WAIT_SECS;
+        final Path pidFile = Paths.get(getUnixPidFile());
+        final long deadline = System.currentTimeMillis() + waitSecs * 1000;
+        try {
+            final int exitCode = kill.waitFor();
+            if (exitCode != 0)
+                throw new RuntimeException("Could not signal the daemon: 'kill' exited with code " + exitCode);
+            while (DaemonLauncher.readPid(pidFile) != null) {
+                if (System.currentTimeMillis() >= deadline)
+                    throw new RuntimeException("Daemon still running after " + waitSecs + " seconds: PID file " + pidFile + " is locked");
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException | IOException e) {
+            throw new RuntimeException(e);
+        }
+        log(LOG_VERBOSE, "Daemon stopped, PID file " + pidFile + " unlocked");
+    }
+
+    /**
+     * Writes a systemd unit running the service through the '{@value #BACKEND_JAVA}' backend, which notifies readiness
+     * once the start method has returned; an app's main, the default, might never return though, so the service is only
+     * considered ready once started if there's a start method. With a socket, a socket unit is written next to it,
+     * which starts the service upon the first connection and hands the listening socket over to it as its stdin.
+     */
+    private List<Path> writeSystemdUnits(ProcessBuilder capsulePb, List<String> cmd) throws IOException {
+        final List<String> execStart = new ArrayList<>();
+        for (final String c : javaDaemonCmd(cmd, false)) {
+            if (!CAPSULE_PORT_PATTERN.matcher(c).matches())
+                execStart.add(systemdQuote(c, true));
+        }
+        final String desc = getPropertyOrAttributeString(PROP_DESCRIPTION, ATTR_DESCRIPTION);
+        final String user = getPropertyOrAttributeString(PROP_USER, ATTR_USER);
+        final String cwd = getPropertyOrAttributeString(PROP_CWD, ATTR_CWD);
+        final String stdout = getPropertyOrAttributeString(PROP_STDOUT_FILE, ATTR_STDOUT_FILE);
+        final String stderr = getPropertyOrAttributeString(PROP_STDERR_FILE, ATTR_STDERR_FILE);
+        final Long stopTimeout = getPropertyOrAttributeLong(PROP_STOP_TIMEOUT, ATTR_STOP_TIMEOUT);
+        final String socket = getPropertyOrAttributeString(PROP_SOCKET, ATTR_SOCKET);
+
+        final String target = System.getProperty(PROP_SYSTEMD_UNIT);
+        final Path service = emptyOrTrue(target) ? getAppDaemonDir().resolve(getAppId() + ".service") : Paths.get(target).toAbsolutePath().normalize();
+        final String name = service.getFileName().toString().replaceFirst("\\.service$", "");
+        final Path socketUnit = service.resolveSibling(name + ".socket");
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("[Unit]\n");
+        sb.append("Description=").append(desc != null ? desc : getAppId()).append('\n');
+        sb.append("After=network.target\n");
+        if (socket != null)
+            sb.append("Requires=").append(socketUnit.getFileName()).append('\n');
+        sb.append("\n[Service]\n");
+        sb.append("Type=").append(getAttribute(ATTR_START_METHOD) != null ? "notify" : "simple").append('\n');
+        sb.append("NotifyAccess=all\n"); // Notifications are sent by a helper process, also for status and heartbeats
+        sb.append("ExecStart=").append(join(execStart, " ")).append('\n');
+        for (final Map.Entry<String, String> e : capsulePb.environment().entrySet()) {
+            if (!e.getValue().equals(System.getenv(e.getKey())))
+                sb.append("Environment=").append(systemdQuote(e.getKey() + "=" + e.getValue(), false)).append('\n');
+        }
+        if (user != null)
+            sb.append("User=").append(user).append('\n');
+        sb.append("WorkingDirectory=").append(cwd != null ? cwd : "/").append('\n');
+        if (getPropertyOrAttributeString(PROP_PID_FILE, ATTR_PID_FILE) == null)
+            sb.append("RuntimeDirectory=").append(getAppId()).append('\n');
+        sb.append("PIDFile=").append(getUnixPidFile()).append('\n');
+        if (socket != null)
+            sb.append("StandardInput=socket\n"); // Where the service finds the listening socket
+        if (stdout != null)
+            sb.append("StandardOutput=append:").append(stdout).append('\n');
+        else if (socket != null)
+            sb.append("StandardOutput=journal\n"); // Rather than the socket
+        if (stderr != null)
+            sb.append("StandardError=append:").append(stderr).append('\n');
+        else if (socket != null)
+            sb.append("StandardError=journal\n");
+        if (stopTimeout != null)
+            sb.append("TimeoutStopSec=").append(stopTimeout).append('\n');
+        sb.append("Restart=on-failure\n");
+        sb.append("\n[Install]\n");
+        sb.append("WantedBy=multi-user.target\n");
+
+        final List<Path> ret = new ArrayList<>();
+        dump(sb.toString(), service);
+        log(LOG_VERBOSE, "systemd unit written to " + service);
+        ret.add(service);
+        if (socket != null) {
+            final StringBuilder ssb = new StringBuilder();
+            ssb.append("[Unit]\n");
+            ssb.append("Description=").append(desc != null ? desc : getAppId()).append(" socket\n");
+            ssb.append("\n[Socket]\n");
+            ssb.append("ListenStream=").append(socket).append('\n');
+            ssb.append("Accept=no\n"); // A single service instance, inheriting the listening socket
+            ssb.append("\n[Install]\n");
+            ssb.append("WantedBy=sockets.target\n");
+            dump(ssb.toString(), socketUnit);
+            log(LOG_VERBOSE, "systemd socket unit written to " + socketUnit);
+            ret.add(socketUnit);
+        }
+        return ret;
+    }
+
+    private static String systemdQuote(String s, boolean execLine) {
+        String ret = s.replace("%", "%%");
+        if (execLine)
+            ret = ret.replace("$", "$$");
+        if (ret.isEmpty() || ret.matches(".*[\\s\"'\\\\;].*"))
+            ret = '"' + ret.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+        return ret;
+    }
+
+    /**
+     * The PID file of the service's JVM which, when socket-activated through the activator's relay, isn't the one of
+     * the daemon (i.e. of the activator) and only exists while the service runs.
+     */
+    private String getServicePidFile() {
+        final String pidFile = getUnixPidFile();
+        return isSocketRelay() ? pidFile + ".service" : pidFile;
+    }
+
+    private List<String> stopJavaCmd() throws IOException {
+        final Path pidFile = Paths.get(getUnixPidFile());
+        final String pid = DaemonLauncher.readPid(pidFile);
+        if (pid == null)
+            throw new IllegalStateException("Daemon is not running: PID file " + pidFile + " not found or stale");
+
+        final List<String> ret = new ArrayList<>();
+        ret.add("kill");
+        ret.add("-TERM");
+        ret.add(pid);
+        return ret;
+    }
+
+    private List<String> daemonJvmArgs() throws IOException {
+        final List<String> ret = new ArrayList<>();
+        final boolean jfr = getPropertyOrAttributeBool(PROP_JFR, ATTR_JFR) && isFlightRecorderAvailable();
+        if (jfr) {
+            final String maxSize = getPropertyOrAttributeString(PROP_JFR_MAX_SIZE, ATTR_JFR_MAX_SIZE);
+            final String maxAge = getPropertyOrAttributeString(PROP_JFR_MAX_AGE, ATTR_JFR_MAX_AGE);
+            ret.add(FlightRecordings.startOption(maxSize != null ? maxSize : DEFAULT_JFR_MAX_SIZE, maxAge != null ? maxAge : DEFAULT_JFR_MAX_AGE));
+            ret.add("-D" + DaemonAdapter.PROP_JFR_DIR + "=" + getJfrDir());
+            ret.add("-D" + DaemonAdapter.PROP_JFR_MAX_FILES + "=" + getJfrMaxFiles());
+        }
+        if (jfr || getPropertyOrAttributeBool(PROP_CONTROL, ATTR_CONTROL)) // Flight recording snapshots go through the control channel
+            ret.add("-D" + DaemonAdapter.PROP_CONTROL_FILE + "=" + getControlFile());
+
+        String preload = getPropertyOrAttributeString(PROP_PRELOAD_CLASSES, ATTR_PRELOAD_CLASSES);
+        if (isStart() && getPropertyOrAttributeBool(PROP_PRELOAD_RECORD, ATTR_PRELOAD_RECORD)) {
+            if (isJava9OrLater()) {
+                // The JVM appends each class to the list as it loads it, starting anew, so the previous run's list is moved aside first
+                final Path dir = getServiceDir("preload");
+                final Path recorded = dir.resolve(PRELOAD_LIST);
+                final Path recording = dir.resolve(PRELOAD_LIST + ".new");
+                if (Files.exists(recording))
+                    Files.move(recording, recorded, StandardCopyOption.REPLACE_EXISTING);
+                ret.add("-XX:DumpLoadedClassList=" + recording);
+                if (preload == null && Files.exists(recorded))
+                    preload = recorded.toString();
+            } else
+                log(LOG_QUIET, "WARNING: Recording loaded classes needs Java 9+, not recording");
+        }
+        if (preload != null)
+            ret.add("-D" + DaemonAdapter.PROP_PRELOAD_CLASSES + "=" + preload);
+
+        if (getPropertyOrAttributeBool(PROP_WATCHDOG, ATTR_WATCHDOG)) {
+            ret.add("-D" + DaemonAdapter.PROP_WATCHDOG_DIR + "=" + getServiceDir("watchdog"));
+            addPropertyOrAttributeLongAsProperty(ret, PROP_WATCHDOG_STALL_MILLIS, ATTR_WATCHDOG_STALL_MILLIS, DaemonAdapter.PROP_WATCHDOG_STALL_MILLIS);
+            addPropertyOrAttributeLongAsProperty(ret, PROP_WATCHDOG_GC_PERCENT, ATTR_WATCHDOG_GC_PERCENT, DaemonAdapter.PROP_WATCHDOG_GC_PERCENT);
+            addPropertyOrAttributeLongAsProperty(ret, PROP_WATCHDOG_GC_WINDOW_SECS, ATTR_WATCHDOG_GC_WINDOW_SECS, DaemonAdapter.PROP_WATCHDOG_GC_WINDOW_SECS);
+            addPropertyOrAttributeLongAsProperty(ret, PROP_WATCHDOG_EXIT_CODE, ATTR_WATCHDOG_EXIT_CODE, DaemonAdapter.PROP_WATCHDOG_EXIT_CODE);
+        }
+
+        final String socket = getPropertyOrAttributeString(PROP_SOCKET, ATTR_SOCKET);
+        if (socket != null && !isSocketRelay()) { // Otherwise the activator passes a loopback address to the service
+            ret.add("-D" + DaemonAdapter.PROP_SOCKET + "=" + socket);
+            if (isSystemdUnit()) // The service inherits the socket from the socket unit, which outlives it
+                addPropertyOrAttributeLongAsProperty(ret, PROP_IDLE_SECS, ATTR_IDLE_SECS, DaemonAdapter.PROP_IDLE_SECS);
+        }
+        if (isStart() && getPropertyOrAttributeBool(PROP_SOCKET_RELAY, ATTR_SOCKET_RELAY) && !isSocketRelay())
+            log(LOG_QUIET, "WARNING: 'Daemon-Socket-Relay' needs 'Daemon-Socket' and the '" + BACKEND_JAVA + "' backend, ignoring");
+        if (isStart() && !isSocketRelay() && getPropertyOrAttributeLong(PROP_IDLE_SECS, ATTR_IDLE_SECS) != null)
+            log(LOG_QUIET, "WARNING: Stopping when idle needs socket activation (a systemd unit written through '" + PROP_SYSTEMD_UNIT + "', or 'Daemon-Socket-Relay'), ignoring");
+
+        if (getPropertyOrAttributeBool(PROP_WARM_STATE, ATTR_WARM_STATE))
+            ret.add("-D" + DaemonAdapter.PROP_WARM_STATE_DIR + "=" + getWarmStateDir());
+
+        return ret;
+    }
+
+    /**
+     * Not under the app dir, which is per-version, so that new versions find the state left by the previous ones.
+     */
+    private Path getWarmStateDir() throws IOException {
+        final String dir = getPropertyOrAttributeString(PROP_WARM_STATE_DIR, ATTR_WARM_STATE_DIR);
+        if (dir != null)
+            return Paths.get(dir).toAbsolutePath().normalize();
+        final String name = getAttribute(ATTR_APP_NAME);
+        if (name == null)
+            log(LOG_VERBOSE, "No 'Application-Name', keeping the warm state by main class");
+        return ownedByService(getDaemonDir().resolve("state").resolve(name != null ? name : getAppClass()));
+    }
+
+    private Path getControlFile() throws IOException {
+        return getServiceDir(RUN_DIR).resolve(CONTROL_FILE);
+    }
 
+    private List<String> controlCmd(String command) throws IOException {
+        if (isWindows())
+            throw new UnsupportedOperationException("The control channel is only supported on Unix");
+
+        final List<String> ret = new ArrayList<>();
+        ret.add(getJavaHome().resolve("bin").resolve("java").toString());
+        ret.add("-cp");
+        ret.add(findOwnJarFile().toString());
+        ret.add(DaemonControl.class.getName());
+        ret.add(getControlFile().toString());
+        ret.add(command);
         return ret;
     }
 
+    private Path getJfrDir() throws IOException {
+        final String dir = getPropertyOrAttributeString(PROP_JFR_DIR, ATTR_JFR_DIR);
+        return dir != null ? Paths.get(dir).toAbsolutePath().normalize() : getServiceDir("jfr");
+    }
+
+    private long getJfrMaxFiles() {
+        final Long maxFiles = getPropertyOrAttributeLong(PROP_JFR_MAX_FILES, ATTR_JFR_MAX_FILES);
+        return maxFiles != null ? maxFiles : DEFAULT_JFR_MAX_FILES;
+    }
+
+    /**
+     * Goes through the control channel rather than 'jcmd', which would need to attach as the service user.
+     */
+    private List<String> jfrSnapshotCmd() throws IOException {
+        if (!getPropertyOrAttributeBool(PROP_JFR, ATTR_JFR))
+            throw new IllegalStateException("Flight recording is not enabled ('" + ATTR_JFR.getKey() + "')");
+        return controlCmd("jfr");
+    }
+
+    private static boolean isTracing() {
+        return emptyOrTrue(System.getProperty(PROP_TRACE)) || System.getProperty(PROP_TRACE_FILE) != null;
+    }
+
+    /**
+     * Records the phase's own time, excluding the phases nested in it (e.g. 'getAppClass' inside 'setupUnixCmd'): as the
+     * launcher is single-threaded, those are the ones traced since {@code startNanos} and not yet nested in another one.
+     */
+    private void trace(String phase, long startNanos) {
+        if (!isTracing())
+            return;
+        final long elapsed = System.nanoTime() - startNanos;
+        long nested = 0;
+        for (final Iterator<long[]> it = traceUnclaimed.iterator(); it.hasNext(); ) {
+            final long[] p = it.next();
+            if (p[0] >= startNanos) {
+                nested += p[1];
+                it.remove();
+            }
+        }
+        traceUnclaimed.add(new long[]{startNanos, elapsed});
+
+        final long self = elapsed - nested;
+        final Long prev = traceNanos.get(phase);
+        traceNanos.put(phase, prev != null ? prev + self : self);
+    }
+
+    /**
+     * Reports the launcher phases' own timings, which add up to the total together with the untraced time ('other').
+     */
+    private void reportTrace() {
+        if (!isTracing())
+            return;
+        final long total = System.nanoTime() - traceStart;
+        long other = total;
+        for (final Long t : traceNanos.values())
+            other -= t;
+
+        if (emptyOrTrue(System.getProperty(PROP_TRACE))) {
+            final StringBuilder sb = new StringBuilder("capsule-daemon launch trace:");
+            for (final Map.Entry<String, Long> e : traceNanos.entrySet())
+                sb.append(' ').append(e.getKey()).append('=').append(millis(e.getValue()));
+            sb.append(" other=").append(millis(other)).append(" total=").append(millis(total));
+            System.err.println(sb);
+        }
+
+        final String traceFile = System.getProperty(PROP_TRACE_FILE);
+        if (traceFile != null) {
+            final StringBuilder sb = new StringBuilder("{\"app\":\"").append(jsonEscape(getAppId())).append("\",\"phasesNanos\":{");
+            String sep = "";
+            for (final Map.Entry<String, Long> e : traceNanos.entrySet()) {
+                sb.append(sep).append('"').append(e.getKey()).append("\":").append(e.getValue());
+                sep = ",";
+            }
+            sb.append("},\"otherNanos\":").append(other).append(",\"totalNanos\":").append(total).append("}\n");
+            try {
+                dump(sb.toString(), Paths.get(traceFile));
+            } catch (IOException e) {
+                log(LOG_QUIET, "WARNING: Could not write launch trace to " + traceFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static String jsonEscape(String s) {
+        final StringBuilder sb = new StringBuilder();
+        for (final char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3fms", nanos / 1e6);
+    }
+
+    private static Integer exitValue(Process p) {
+        try {
+            return p.exitValue();
+        } catch (IllegalThreadStateException e) {
+            return null; // Still running
+        }
+    }
+
+    private static String findSetsid() {
+        for (final String p : SETSID_PATHS) {
+            if (Files.isExecutable(Paths.get(p)))
+                return p;
+        }
+        log(LOG_QUIET, "WARNING: 'setsid' not found, the daemon won't be detached from the current session");
+        return null;
+    }
+
     private String getPropertyOrAttributeString(String propName, Map.Entry<String, String> attr) {
         final String propValue = System.getProperty(propName);
         if (propValue == null)
@@ -679,6 +1538,7 @@ public class DaemonCapsule extends Capsule {
 
     private String getAppClass() {
         if (appClass == null) {
+            final long t = System.nanoTime();
             if (hasAttribute(ATTR_APP_CLASS))
                 appClass = getAttribute(ATTR_APP_CLASS);
             else if (hasAttribute(ATTR_APP_ARTIFACT)) {
@@ -688,6 +1548,7 @@ public class DaemonCapsule extends Capsule {
                 appClass = getMainClass(appArtifactPaths.get(0));
             } else
                 throw new IllegalStateException("Can't figure out the application's main class: nor 'Application-Class' neither 'Application' have been found");
+            trace("getAppClass", t);
         }
         return appClass;
     }
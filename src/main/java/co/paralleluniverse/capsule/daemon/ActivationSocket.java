@@ -0,0 +1,197 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The service's listening socket, either inherited from the service manager (e.g. a systemd {@code .socket} unit
+ * with {@code StandardInput=socket}, or {@code systemd-socket-activate --inetd}) or bound by the service itself.
+ * <p>
+ * An inherited socket outlives the service, which can then stop itself once it has been idle for a while: the
+ * connections arriving meanwhile wait in the socket's backlog and make the service manager start it again. Connections
+ * are tracked through the kernel's TCP tables rather than by wrapping the socket, so that the service can accept them
+ * in whichever way it likes, e.g. through a selector.
+ *
+ * @author circlespainter
+ */
+final class ActivationSocket {
+
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    private static final long DRAIN_INTERVAL_MILLIS = 50;
+    private static final String[] TCP_TABLES = new String[]{"/proc/net/tcp", "/proc/net/tcp6"};
+    private static final String TCP_TIME_WAIT = "06";
+    private static final String TCP_LISTEN = "0A";
+    private static final Path FDS = Paths.get("/proc/self/fd");
+
+    private ActivationSocket() {
+    }
+
+    /**
+     * @return the inherited socket, or {@code null} if the service has been started without one
+     */
+    static ServerSocketChannel inherited() throws IOException {
+        final Channel c = System.inheritedChannel();
+        return c instanceof ServerSocketChannel ? (ServerSocketChannel) c : null;
+    }
+
+    static ServerSocketChannel bind(String address) throws IOException {
+        final ServerSocketChannel ret = ServerSocketChannel.open();
+        ret.socket().setReuseAddress(true);
+        ret.bind(parseAddress(address));
+        return ret;
+    }
+
+    /**
+     * Parses {@code [host:]port}, where an IPv6 host is enclosed in brackets; without a host, all interfaces are meant.
+     */
+    static InetSocketAddress parseAddress(String address) {
+        final int colon = address.lastIndexOf(':');
+        final int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid socket address '" + address + "', must be [host:]port");
+        }
+        if (colon < 0)
+            return new InetSocketAddress(port);
+        String host = address.substring(0, colon).trim();
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+        return new InetSocketAddress(host, port);
+    }
+
+    /**
+     * Exits the JVM, hence stopping the service, when the socket's port has seen no connection for {@code idleSecs}.
+     * <p>
+     * The socket is closed before exiting, and the connections this process had accepted meanwhile are served to
+     * completion; as the service manager keeps its own copy of the socket open, the ones still queued are left to the
+     * next instance.
+     */
+    static void stopWhenIdle(final ServerSocketChannel socket, final long idleSecs) {
+        final int port = socket.socket().getLocalPort();
+        if (!Files.isDirectory(FDS)) {
+            System.err.println("capsule-daemon: WARNING: open connections can't be tracked without /proc, not stopping when idle");
+            return;
+        }
+        final long idleNanos = TimeUnit.SECONDS.toNanos(idleSecs);
+        final Thread t = new Thread("capsule-daemon-idle") {
+            @Override
+            public void run() {
+                try {
+                    final Set<String> closed = new HashSet<>();
+                    long lastActivity = System.nanoTime();
+                    while (socket.isOpen()) {
+                        Thread.sleep(CHECK_INTERVAL_MILLIS);
+                        if (isActive(port, closed))
+                            lastActivity = System.nanoTime();
+                        else if (System.nanoTime() - lastActivity >= idleNanos && socket.isOpen()) {
+                            System.err.println("capsule-daemon: no connections for " + idleSecs + " seconds, stopping");
+                            socket.close();
+                            while (owned(port) > 0)
+                                Thread.sleep(DRAIN_INTERVAL_MILLIS);
+                            System.exit(0);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("capsule-daemon: WARNING: could not track open connections, not stopping when idle: " + e);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Whether there are connections to {@code port}, open or still queued, or connections closed since the last check
+     * (i.e. in {@code TIME_WAIT} and not in {@code closed}, which is updated), so that short-lived ones aren't missed.
+     */
+    static boolean isActive(int port, Set<String> closed) throws IOException {
+        boolean ret = false;
+        final Set<String> timeWait = new HashSet<>();
+        for (final String[] c : connections(port)) {
+            if (!TCP_TIME_WAIT.equals(c[3])) {
+                ret = true;
+                continue;
+            }
+            final String id = c[1] + ' ' + c[2]; // Local and remote address
+            timeWait.add(id);
+            if (!closed.contains(id))
+                ret = true;
+        }
+        closed.clear();
+        closed.addAll(timeWait);
+        return ret;
+    }
+
+    /**
+     * The number of connections to {@code port} this process holds open.
+     */
+    static int owned(int port) throws IOException {
+        final Set<String> inodes = socketInodes();
+        int ret = 0;
+        for (final String[] c : connections(port)) {
+            if (inodes.contains(c[9]))
+                ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * The entries of the kernel's TCP tables for connections to {@code port}: local and remote address, state, queues,
+     * timer, retransmits, uid, timeout and inode.
+     */
+    private static List<String[]> connections(int port) throws IOException {
+        final List<String[]> ret = new ArrayList<>();
+        for (final String table : TCP_TABLES) {
+            final Path p = Paths.get(table);
+            if (!Files.exists(p))
+                continue;
+            for (final String line : Files.readAllLines(p, Charset.forName("US-ASCII"))) {
+                final String[] fields = line.trim().split("\\s+");
+                if (fields.length < 10 || fields[1].indexOf(':') < 0)
+                    continue; // Header
+                final int localPort = Integer.parseInt(fields[1].substring(fields[1].indexOf(':') + 1), 16);
+                if (localPort == port && !TCP_LISTEN.equals(fields[3]))
+                    ret.add(fields);
+            }
+        }
+        return ret;
+    }
+
+    private static Set<String> socketInodes() throws IOException {
+        final Set<String> ret = new HashSet<>();
+        try (final DirectoryStream<Path> fds = Files.newDirectoryStream(FDS)) {
+            for (final Path fd : fds) {
+                try {
+                    final String target = Files.readSymbolicLink(fd).toString(); // socket:[<inode>]
+                    if (target.startsWith("socket:["))
+                        ret.add(target.substring("socket:[".length(), target.length() - 1));
+                } catch (IOException ignored) {
+                    // Closed meanwhile
+                }
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Loads a list of classes in parallel on all cores, then initializes them in list order on the calling thread, as
+ * static initializers may depend on each other's side effects and on running in the order the application runs them.
+ * <p>
+ * The list has a class name per line, either in binary ({@code a.b.C$D}) or internal ({@code a/b/C$D}) form; anything
+ * after the name, empty lines and lines starting with {@code #} or {@code @} are ignored, so that lists produced by
+ * {@code -XX:DumpLoadedClassList} can be used as-is.
+ *
+ * @author circlespainter
+ */
+final class ClassPreloader {
+
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private ClassPreloader() {
+    }
+
+    /**
+     * @param source a file or, if no such file exists, a resource
+     */
+    static void preload(String source, final ClassLoader cl) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final List<String> names = read(source, cl);
+        if (names == null) {
+            System.err.println("capsule-daemon: WARNING: class list " + source + " not found, not preloading");
+            return;
+        }
+
+        final AtomicReferenceArray<Class<?>> loaded = new AtomicReferenceArray<>(names.size());
+        final AtomicInteger next = new AtomicInteger();
+        final int parallelism = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), names.size()));
+        final List<Thread> threads = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            final Thread t = new Thread("capsule-daemon-preload-" + i) {
+                @Override
+                public void run() {
+                    for (int j; (j = next.getAndIncrement()) < names.size(); ) {
+                        try {
+                            loaded.set(j, Class.forName(names.get(j), false, cl));
+                        } catch (Throwable e) {
+                            // The application will fail on its own if it needs it
+                        }
+                    }
+                }
+            };
+            t.setDaemon(true); // Don't keep a daemon that's being stopped alive because of a stuck class loader
+            t.start();
+            threads.add(t);
+        }
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        boolean timedOut = false;
+        for (final Thread t : threads) {
+            t.join(Math.max(1, deadline - System.currentTimeMillis()));
+            timedOut |= t.isAlive();
+        }
+
+        final long loadedNanos = System.nanoTime();
+
+        int initialized = 0;
+        int notLoaded = 0;
+        int failed = 0;
+        for (int i = 0; i < names.size(); i++) {
+            final Class<?> c = loaded.get(i);
+            if (c == null) {
+                notLoaded++;
+                continue;
+            }
+            try {
+                Class.forName(c.getName(), true, c.getClassLoader());
+                initialized++;
+            } catch (Throwable e) {
+                failed++;
+            }
+        }
+
+        System.err.println("capsule-daemon: preloaded " + initialized + " classes (" + notLoaded + " not loaded, " + failed + " failed to initialize) from " + source
+            + " in " + (System.nanoTime() - start) / 1000000 + " ms, loading on " + parallelism + " threads in " + (loadedNanos - start) / 1000000 + " ms"
+            + (timedOut ? " (timed out)" : ""));
+    }
+
+    private static List<String> read(String source, ClassLoader cl) throws IOException {
+        final Path p = Paths.get(source);
+        final InputStream is = Files.isRegularFile(p) ? Files.newInputStream(p) : cl.getResourceAsStream(source);
+        if (is == null)
+            return null;
+
+        final List<String> ret = new ArrayList<>();
+        try (final BufferedReader r = new BufferedReader(new InputStreamReader(is, Charset.forName("UTF-8")))) {
+            for (String l; (l = r.readLine()) != null; ) {
+                l = l.trim();
+                if (l.isEmpty() || l.startsWith("#") || l.startsWith("@"))
+                    continue;
+                final int sp = l.indexOf(' ');
+                final String name = (sp > 0 ? l.substring(0, sp) : l).replace('/', '.');
+                if (!name.contains("$$Lambda") && !name.contains(".0x")) // Hidden classes can't be loaded by name
+                    ret.add(name);
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Merges a classpath into a single uncompressed (STORED) JAR, so that classes are found with a single lookup and
+ * loaded without inflating them.
+ * <p>
+ * Conflicts are resolved deterministically: the first classpath element providing an entry wins, like it would when
+ * loading classes, except for {@code META-INF/services} files whose lines are concatenated in classpath order.
+ * Signatures, indexes and manifests of the inputs are dropped, and so are the {@code META-INF/versions} entries of inputs
+ * that aren't multi-release, as the merged JAR is multi-release if any input is.
+ *
+ * @author circlespainter
+ */
+public final class ClasspathMerger {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SERVICES = "META-INF/services/";
+    private static final String VERSIONS = "META-INF/versions/";
+    private static final String STAMP_EXT = ".inputs";
+    private static final Attributes.Name MULTI_RELEASE = new Attributes.Name("Multi-Release");
+
+    private final Set<String> written = new HashSet<>();
+    private final Map<String, Set<String>> services = new TreeMap<>();
+    private final Set<Path> multiReleaseInputs = new HashSet<>();
+
+    private ClasspathMerger() {
+    }
+
+    /**
+     * Merges {@code inputs} into {@code target} unless it's already up-to-date.
+     *
+     * @return {@code true} if {@code target} has been (re)built
+     */
+    public static boolean merge(List<Path> inputs, Path target) throws IOException {
+        final Path stampFile = target.resolveSibling(target.getFileName() + STAMP_EXT);
+        final byte[] stamp = stamp(inputs).getBytes(UTF8);
+        if (Files.exists(target) && Files.exists(stampFile) && Arrays.equals(stamp, Files.readAllBytes(stampFile)))
+            return false;
+
+        final Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        final ClasspathMerger merger = new ClasspathMerger();
+        try (final ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(tmp))) {
+            out.setMethod(ZipOutputStream.STORED);
+            merger.writeStored(out, "META-INF/", new byte[0], 0);
+            // Inputs are scanned before writing the manifest, whose Multi-Release attribute depends on them
+            final List<Path> existing = new ArrayList<>();
+            for (final Path in : inputs) {
+                if (Files.exists(in))
+                    existing.add(in);
+            }
+            for (final Path in : existing)
+                merger.scanManifest(in);
+            merger.writeStored(out, JarFile.MANIFEST_NAME, merger.manifest(), System.currentTimeMillis());
+
+            for (final Path in : existing) {
+                if (Files.isDirectory(in))
+                    merger.addDirectory(out, in);
+                else
+                    merger.addJar(out, in);
+            }
+            merger.writeServices(out);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.write(stampFile, stamp);
+        return true;
+    }
+
+    private static String stamp(List<Path> inputs) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for (final Path in : inputs) {
+            sb.append(in.toAbsolutePath().normalize());
+            if (Files.isRegularFile(in))
+                sb.append('\t').append(Files.size(in)).append('\t').append(Files.getLastModifiedTime(in).toMillis());
+            else if (Files.isDirectory(in))
+                sb.append('\t').append(latestModified(in));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static long latestModified(Path dir) throws IOException {
+        final long[] latest = new long[1];
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                latest[0] = Math.max(latest[0], attrs.lastModifiedTime().toMillis());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                latest[0] = Math.max(latest[0], attrs.lastModifiedTime().toMillis());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return latest[0];
+    }
+
+    private void scanManifest(Path in) throws IOException {
+        final Manifest m;
+        if (Files.isDirectory(in)) {
+            final Path mf = in.resolve(JarFile.MANIFEST_NAME);
+            if (!Files.isRegularFile(mf))
+                return;
+            try (final InputStream is = Files.newInputStream(mf)) {
+                m = new Manifest(is);
+            }
+        } else {
+            try (final JarFile jar = new JarFile(in.toFile())) {
+                m = jar.getManifest();
+            }
+        }
+        if (m != null && "true".equalsIgnoreCase(m.getMainAttributes().getValue(MULTI_RELEASE)))
+            multiReleaseInputs.add(in);
+    }
+
+    private byte[] manifest() throws IOException {
+        final Manifest m = new Manifest();
+        m.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        m.getMainAttributes().putValue("Created-By", "capsule-daemon");
+        if (!multiReleaseInputs.isEmpty())
+            m.getMainAttributes().put(MULTI_RELEASE, "true");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        m.write(out);
+        return out.toByteArray();
+    }
+
+    private void addJar(ZipOutputStream out, Path in) throws IOException {
+        try (final ZipFile zip = new ZipFile(in.toFile())) {
+            for (final Enumeration<? extends ZipEntry> es = zip.entries(); es.hasMoreElements(); ) {
+                final ZipEntry e = es.nextElement();
+                final String name = e.getName();
+                if (skip(name) || skipVersioned(in, name))
+                    continue;
+                if (e.isDirectory()) {
+                    writeStored(out, name, new byte[0], e.getTime());
+                    continue;
+                }
+                try (final InputStream is = zip.getInputStream(e)) {
+                    add(out, name, is, e.getTime());
+                }
+            }
+        }
+    }
+
+    private void addDirectory(final ZipOutputStream out, final Path dir) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files); // Directory listing order isn't deterministic
+        for (final Path f : files) {
+            final String name = dir.relativize(f).toString().replace(f.getFileSystem().getSeparator(), "/");
+            if (skip(name) || skipVersioned(dir, name))
+                continue;
+            try (final InputStream is = Files.newInputStream(f)) {
+                add(out, name, is, Files.getLastModifiedTime(f).toMillis());
+            }
+        }
+    }
+
+    private void add(ZipOutputStream out, String name, InputStream is, long time) throws IOException {
+        if (name.startsWith(SERVICES) && name.length() > SERVICES.length()) {
+            Set<String> impls = services.get(name);
+            if (impls == null)
+                services.put(name, impls = new LinkedHashSet<>());
+            for (final String l : new String(readAll(is), UTF8).split("\\r?\\n")) {
+                final String impl = l.replaceFirst("#.*", "").trim();
+                if (!impl.isEmpty())
+                    impls.add(impl);
+            }
+        } else if (!written.contains(name))
+            writeStored(out, name, readAll(is), time);
+    }
+
+    private void writeServices(ZipOutputStream out) throws IOException {
+        for (final Map.Entry<String, Set<String>> e : services.entrySet()) {
+            final StringBuilder sb = new StringBuilder();
+            for (final String impl : e.getValue())
+                sb.append(impl).append('\n');
+            writeStored(out, e.getKey(), sb.toString().getBytes(UTF8), 0);
+        }
+    }
+
+    private void writeStored(ZipOutputStream out, String name, byte[] content, long time) throws IOException {
+        if (!written.add(name))
+            return;
+        final CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        final ZipEntry e = new ZipEntry(name);
+        e.setMethod(ZipEntry.STORED);
+        e.setSize(content.length);
+        e.setCompressedSize(content.length);
+        e.setCrc(crc.getValue());
+        if (time > 0)
+            e.setTime(time);
+        out.putNextEntry(e);
+        out.write(content);
+        out.closeEntry();
+    }
+
+    private boolean skipVersioned(Path in, String name) {
+        return name.startsWith(VERSIONS) && !multiReleaseInputs.contains(in);
+    }
+
+    private static boolean skip(String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0)
+            return false; // Only top-level META-INF files are JAR metadata
+        final String n = name.substring("META-INF/".length()).toUpperCase();
+        return n.isEmpty() || n.equals("MANIFEST.MF") || n.equals("INDEX.LIST")
+            || n.endsWith(".SF") || n.endsWith(".DSA") || n.endsWith(".RSA") || n.endsWith(".EC") || n.startsWith("SIG-");
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy(is, out);
+        return out.toByteArray();
+    }
+
+    private static void copy(InputStream is, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[8192];
+        for (int n; (n = is.read(buffer)) != -1; )
+            out.write(buffer, 0, n);
+    }
+}
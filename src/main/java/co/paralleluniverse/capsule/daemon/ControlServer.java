@@ -0,0 +1,152 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Local diagnostics endpoint of the daemon: a loopback socket guarded by a random token.
+ * <p>
+ * Port and token are published in a control file readable only by the daemon's user. Requests are lines of the form
+ * {@code <token> <command>}, served one at a time on a single minimum-priority thread so that diagnosing an overloaded
+ * daemon doesn't overload it any further.
+ *
+ * @author circlespainter
+ */
+final class ControlServer implements Runnable {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final String COMMANDS = "threads, histo, gc, state, metrics, jfr, help";
+
+    private static final int SO_TIMEOUT_MILLIS = 5000;
+    private static final int BACKLOG = 4;
+
+    private static volatile ControlServer instance;
+
+    private final Path controlFile;
+    private final ServerSocket server;
+    private final String token;
+
+    private ControlServer(Path controlFile) throws IOException {
+        this.controlFile = controlFile;
+        this.server = new ServerSocket(0, BACKLOG, InetAddress.getLoopbackAddress());
+        final byte[] t = new byte[16];
+        new SecureRandom().nextBytes(t);
+        this.token = hex(t);
+        publish();
+    }
+
+    static synchronized void start(Path controlFile) throws IOException {
+        if (instance != null)
+            return;
+        instance = new ControlServer(controlFile);
+        final Thread t = new Thread(instance, "capsule-daemon-control");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    static synchronized void shutdown() {
+        if (instance == null)
+            return;
+        try {
+            Files.deleteIfExists(instance.controlFile);
+            instance.server.close();
+        } catch (IOException e) {
+            System.err.println("capsule-daemon: WARNING: could not close control channel: " + e.getMessage());
+        }
+        instance = null;
+    }
+
+    private void publish() throws IOException {
+        Files.createDirectories(controlFile.toAbsolutePath().getParent());
+        final Path tmp = controlFile.resolveSibling(controlFile.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        try {
+            Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(tmp); // Not a POSIX file system
+        }
+        Files.write(tmp, (server.getLocalPort() + "\n" + token + "\n").getBytes(UTF8));
+        Files.move(tmp, controlFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void run() {
+        while (!server.isClosed()) {
+            try (final Socket s = server.accept()) {
+                s.setSoTimeout(SO_TIMEOUT_MILLIS);
+                serve(s);
+            } catch (SocketException e) {
+                if (!server.isClosed())
+                    System.err.println("capsule-daemon: WARNING: control channel error: " + e.getMessage());
+            } catch (Throwable t) {
+                System.err.println("capsule-daemon: WARNING: control channel error: " + t);
+            }
+        }
+    }
+
+    private void serve(Socket s) throws Exception {
+        final String req = new BufferedReader(new InputStreamReader(s.getInputStream(), UTF8)).readLine();
+        final OutputStream out = s.getOutputStream();
+        final int sp = req != null ? req.indexOf(' ') : -1;
+        if (sp < 0 || !MessageDigest.isEqual(token.getBytes(UTF8), req.substring(0, sp).getBytes(UTF8))) {
+            out.write("ERROR: unauthorized\n".getBytes(UTF8));
+            return;
+        }
+        out.write(execute(req.substring(sp + 1).trim()).getBytes(UTF8));
+        out.flush();
+    }
+
+    private static String execute(String command) throws Exception {
+        switch (command) {
+            case "threads":
+                return Diagnostics.threadDump();
+            case "histo":
+                return Diagnostics.heapHistogram();
+            case "gc":
+                return Diagnostics.gc();
+            case "state":
+                return DaemonAdapter.describeState() + "\n";
+            case "metrics":
+                return Diagnostics.metrics();
+            case "jfr":
+                try {
+                    return "flight recording dumped to " + DaemonAdapter.snapshotRecording() + "\n";
+                } catch (IllegalStateException e) {
+                    return "ERROR: " + e.getMessage() + "\n";
+                }
+            case "help":
+                return "Commands: " + COMMANDS + "\n";
+            default:
+                return "ERROR: unknown command '" + command + "', available commands: " + COMMANDS + "\n";
+        }
+    }
+
+    private static String hex(byte[] bs) {
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : bs)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
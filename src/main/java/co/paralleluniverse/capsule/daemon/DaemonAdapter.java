@@ -8,8 +8,18 @@
  */
 package co.paralleluniverse.capsule.daemon;
 
+import javax.management.JMException;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * @author circlespainter
@@ -24,11 +34,44 @@ public class DaemonAdapter {
     public static final String PROP_STOP_METHOD = "capsule.daemon.stopMethod";
     public static final String PROP_DESTROY_CLASS = "capsule.daemon.destroyClass";
     public static final String PROP_DESTROY_METHOD = "capsule.daemon.destroyMethod";
+    public static final String PROP_JFR_DIR = "capsule.daemon.jfrDir";
+    public static final String PROP_JFR_MAX_FILES = "capsule.daemon.jfrMaxFiles";
+    public static final String PROP_CONTROL_FILE = "capsule.daemon.controlFile";
+    public static final String PROP_PRELOAD_CLASSES = "capsule.daemon.preloadClasses";
+    public static final String PROP_WATCHDOG_DIR = "capsule.daemon.watchdogDir";
+    public static final String PROP_WATCHDOG_STALL_MILLIS = "capsule.daemon.watchdogStallMillis";
+    public static final String PROP_WATCHDOG_GC_PERCENT = "capsule.daemon.watchdogGcPercent";
+    public static final String PROP_WATCHDOG_GC_WINDOW_SECS = "capsule.daemon.watchdogGcWindowSecs";
+    public static final String PROP_WATCHDOG_EXIT_CODE = "capsule.daemon.watchdogExitCode";
+    public static final String PROP_WARM_STATE_DIR = "capsule.daemon.warmStateDir";
+    public static final String PROP_SOCKET = "capsule.daemon.socket";
+    public static final String PROP_IDLE_SECS = "capsule.daemon.idleSecs";
+
+    private static final int DEFAULT_JFR_MAX_FILES = 10;
+    private static final long DEFAULT_WATCHDOG_STALL_MILLIS = 10000;
+    private static final long DEFAULT_WATCHDOG_GC_PERCENT = 90;
+    private static final long DEFAULT_WATCHDOG_GC_WINDOW_SECS = 60;
+    private static final int DEFAULT_WATCHDOG_EXIT_CODE = 123; // Makes jsvc restart the JVM
+
+    /**
+     * The lifecycle states of the daemon.
+     */
+    public enum State {
+        NEW, INITIALIZING, INITIALIZED, STARTING, STARTED, STOPPING, STOPPED, DESTROYING, DESTROYED
+    }
 
     private static String[] mainArgs;
+    private static volatile boolean recordingDumped;
+    private static volatile State state = State.NEW;
+    private static volatile long phaseStart;
+    private static ServerSocketChannel activationChannel;
+    private static final Map<String, Long> phaseMillis = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
 
     public static void init(String args[]) throws InvocationTargetException, IllegalAccessException, NoSuchMethodException, ClassNotFoundException {
+        enter(State.INITIALIZING);
         mainArgs = (String[]) i(p(PROP_INIT_CLASS), p(PROP_INIT_METHOD), args);
+        preload();
+        leave(State.INITIALIZED, "init");
     }
 
     public static void main(String[] args) throws InvocationTargetException, IllegalAccessException, NoSuchMethodException, ClassNotFoundException {
@@ -36,15 +79,198 @@ public class DaemonAdapter {
     }
 
     public static void start() throws InvocationTargetException, IllegalAccessException, NoSuchMethodException, ClassNotFoundException {
+        enter(State.STARTING);
+        startControl();
+        startWatchdog();
         main(mainArgs);
+        leave(State.STARTED, "start");
     }
 
     public static void stop() throws InvocationTargetException, IllegalAccessException, NoSuchMethodException, ClassNotFoundException {
-        i(p(PROP_STOP_CLASS), p(PROP_STOP_METHOD));
+        enter(State.STOPPING);
+        Watchdog.shutdown();
+        try {
+            i(p(PROP_STOP_CLASS), p(PROP_STOP_METHOD));
+        } finally {
+            dumpRecording("stop");
+        }
+        leave(State.STOPPED, "stop");
     }
 
     public static void destroy() throws InvocationTargetException, IllegalAccessException, NoSuchMethodException, ClassNotFoundException {
-        i(p(PROP_DESTROY_CLASS), p(PROP_DESTROY_METHOD));
+        enter(State.DESTROYING);
+        try {
+            i(p(PROP_DESTROY_CLASS), p(PROP_DESTROY_METHOD));
+        } finally {
+            dumpRecording("destroy");
+            ControlServer.shutdown();
+        }
+        leave(State.DESTROYED, "destroy");
+    }
+
+    public static State getState() {
+        return state;
+    }
+
+    /**
+     * The current lifecycle state followed by the duration of the completed phases, e.g. {@code STARTED (init 3 ms, start 250 ms)}.
+     */
+    public static String describeState() {
+        final StringBuilder sb = new StringBuilder(state.toString());
+        synchronized (phaseMillis) {
+            String sep = " (";
+            for (final Map.Entry<String, Long> e : phaseMillis.entrySet()) {
+                sb.append(sep).append(e.getKey()).append(' ').append(e.getValue()).append(" ms");
+                sep = ", ";
+            }
+            if (!phaseMillis.isEmpty())
+                sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Atomically replaces the warm state {@code name} with the remaining bytes of {@code content}, e.g. a cache snapshot
+     * taken during {@code stop}.
+     *
+     * @param version the application-defined version of the content's format, checked by {@link #mapWarmState}
+     * @throws IllegalStateException if warm state is not enabled ({@code Daemon-Warm-State})
+     */
+    public static void writeWarmState(String name, int version, ByteBuffer content) throws IOException {
+        WarmState.write(warmStateDir(), name, version, content);
+    }
+
+    /**
+     * Maps the warm state {@code name} read-only, e.g. to restore caches during {@code start}.
+     *
+     * @return the content, or {@code null} if there is none or it's stale (of a different {@code version}) or corrupt
+     * @throws IllegalStateException if warm state is not enabled ({@code Daemon-Warm-State})
+     */
+    public static ByteBuffer mapWarmState(String name, int version) throws IOException {
+        return WarmState.map(warmStateDir(), name, version);
+    }
+
+    /**
+     * @throws IllegalStateException if warm state is not enabled ({@code Daemon-Warm-State})
+     */
+    public static void deleteWarmState(String name) throws IOException {
+        WarmState.delete(warmStateDir(), name);
+    }
+
+    /**
+     * The service's listening socket, inherited from the service manager when it's socket-activated, e.g. by the
+     * systemd units written through {@code capsule.daemon.systemdUnit}, or else bound to the {@code Daemon-Socket}
+     * address (which, with {@code Daemon-Socket-Relay}, is the loopback port connections are relayed to). When it's
+     * inherited and {@code Daemon-Idle-Secs} is set, the service stops itself once no connection has been open for
+     * that long.
+     *
+     * @throws IllegalStateException if no listening socket has been declared ({@code Daemon-Socket})
+     */
+    public static synchronized ServerSocketChannel activationChannel() throws IOException {
+        if (activationChannel == null) {
+            final String address = p(PROP_SOCKET);
+            if (address == null)
+                throw new IllegalStateException("No listening socket has been declared (Daemon-Socket)");
+            final ServerSocketChannel inherited = ActivationSocket.inherited();
+            activationChannel = inherited != null ? inherited : ActivationSocket.bind(address);
+            final Long idleSecs = Long.getLong(PROP_IDLE_SECS);
+            if (inherited != null && idleSecs != null && idleSecs > 0)
+                ActivationSocket.stopWhenIdle(inherited, idleSecs);
+        }
+        return activationChannel;
+    }
+
+    /**
+     * The {@link #activationChannel() listening socket} for blocking servers.
+     */
+    public static ServerSocket activationSocket() throws IOException {
+        return activationChannel().socket();
+    }
+
+    private static Path warmStateDir() {
+        final String dir = p(PROP_WARM_STATE_DIR);
+        if (dir == null)
+            throw new IllegalStateException("Warm state is not enabled (Daemon-Warm-State)");
+        return Paths.get(dir);
+    }
+
+    private static void enter(State s) {
+        state = s;
+        phaseStart = System.nanoTime();
+        if (s.compareTo(State.STARTING) < 0)
+            return; // jsvc runs 'init' as root, which must not start the notifier's helper as it lives as long as the service
+        final ServiceNotifier notifier = ServiceNotifier.get();
+        if (s == State.STOPPING) {
+            notifier.stopHeartbeat();
+            notifier.stopping(describeState());
+        } else {
+            notifier.status(describeState());
+            if (s == State.STARTING)
+                notifier.startHeartbeat(); // Now, as the start method might be a main that never returns
+        }
+    }
+
+    private static void leave(State s, String phase) {
+        phaseMillis.put(phase, (System.nanoTime() - phaseStart) / 1000000);
+        state = s;
+        if (s == State.STARTED)
+            ServiceNotifier.get().ready(describeState());
+    }
+
+    private static void preload() {
+        final String classList = p(PROP_PRELOAD_CLASSES);
+        if (classList == null)
+            return;
+        try {
+            ClassPreloader.preload(classList, DaemonAdapter.class.getClassLoader());
+        } catch (IOException | InterruptedException e) {
+            System.err.println("capsule-daemon: WARNING: could not preload classes from " + classList + ": " + e);
+        }
+    }
+
+    private static void startWatchdog() {
+        final String dir = p(PROP_WATCHDOG_DIR);
+        if (dir == null)
+            return;
+        Watchdog.start(Paths.get(dir),
+            Long.getLong(PROP_WATCHDOG_STALL_MILLIS, DEFAULT_WATCHDOG_STALL_MILLIS),
+            Long.getLong(PROP_WATCHDOG_GC_PERCENT, DEFAULT_WATCHDOG_GC_PERCENT),
+            Long.getLong(PROP_WATCHDOG_GC_WINDOW_SECS, DEFAULT_WATCHDOG_GC_WINDOW_SECS),
+            Integer.getInteger(PROP_WATCHDOG_EXIT_CODE, DEFAULT_WATCHDOG_EXIT_CODE));
+    }
+
+    private static void startControl() {
+        final String controlFile = p(PROP_CONTROL_FILE);
+        if (controlFile == null)
+            return;
+        try {
+            ControlServer.start(Paths.get(controlFile));
+        } catch (IOException e) {
+            System.err.println("capsule-daemon: WARNING: could not open control channel: " + e);
+        }
+    }
+
+    /**
+     * Dumps the running flight recording upon request, e.g. through the control channel.
+     */
+    static Path snapshotRecording() throws IOException, JMException {
+        final String dir = p(PROP_JFR_DIR);
+        if (dir == null)
+            throw new IllegalStateException("Flight recording is not enabled (Daemon-JFR) or not supported by this JVM");
+        return FlightRecordings.dump(Paths.get(dir), Integer.getInteger(PROP_JFR_MAX_FILES, DEFAULT_JFR_MAX_FILES), "snapshot");
+    }
+
+    static void dumpRecording(String phase) {
+        final String dir = p(PROP_JFR_DIR);
+        if (dir == null || recordingDumped)
+            return;
+        recordingDumped = true;
+        try {
+            final Path f = FlightRecordings.dump(Paths.get(dir), Integer.getInteger(PROP_JFR_MAX_FILES, DEFAULT_JFR_MAX_FILES), phase);
+            System.err.println("capsule-daemon: flight recording dumped to " + f);
+        } catch (Exception e) {
+            System.err.println("capsule-daemon: WARNING: could not dump flight recording upon " + phase + ": " + e);
+        }
     }
 
     private static String p(String s) {
@@ -0,0 +1,60 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Command-line client of a running daemon's control channel.
+ * <p>
+ * Usage: {@code DaemonControl <control file> <command>}
+ *
+ * @author circlespainter
+ */
+public class DaemonControl {
+
+    private static final int TIMEOUT_MILLIS = 60000;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: " + DaemonControl.class.getName() + " <control file> <command>, commands: " + ControlServer.COMMANDS);
+            System.exit(2);
+        }
+
+        final Path controlFile = Paths.get(args[0]);
+        if (!Files.exists(controlFile)) {
+            System.err.println("Daemon control channel not available: " + controlFile + " not found");
+            System.exit(1);
+        }
+        final List<String> conf = Files.readAllLines(controlFile, ControlServer.UTF8);
+        final int port = Integer.parseInt(conf.get(0).trim());
+        final String token = conf.get(1).trim();
+
+        try (final Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            s.setSoTimeout(TIMEOUT_MILLIS);
+            final OutputStream out = s.getOutputStream();
+            out.write((token + " " + args[1] + "\n").getBytes(ControlServer.UTF8));
+            out.flush();
+
+            final InputStream in = s.getInputStream();
+            final byte[] buf = new byte[8192];
+            for (int n; (n = in.read(buf)) != -1; )
+                System.out.write(buf, 0, n);
+            System.out.flush();
+        }
+    }
+}
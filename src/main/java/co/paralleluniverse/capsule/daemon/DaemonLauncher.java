@@ -0,0 +1,129 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pure-Java alternative to jsvc: runs {@link DaemonAdapter}'s lifecycle directly in the daemon JVM.
+ * <p>
+ * {@code init} and {@code start} are run at launch while holding a locked PID file; {@code stop} and {@code destroy}
+ * are run upon {@code SIGTERM} or {@code SIGINT}, before the JVM starts shutting down, or from a shutdown hook if signals
+ * can't be handled directly.
+ *
+ * @author circlespainter
+ */
+public class DaemonLauncher {
+
+    public static final String PROP_PID_FILE = "capsule.daemon.pidFile";
+
+    private static final String[] STOP_SIGNALS = new String[]{"TERM", "INT"};
+
+    private static final CountDownLatch stopped = new CountDownLatch(1);
+    private static final AtomicBoolean stopping = new AtomicBoolean();
+    private static volatile boolean started;
+    private static PidFile pidFile;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final String pidFileName = System.getProperty(PROP_PID_FILE);
+        if (pidFileName == null)
+            throw new IllegalStateException("The " + PROP_PID_FILE + " system property must be set");
+        pidFile = PidFile.lock(Paths.get(pidFileName));
+
+        Runtime.getRuntime().addShutdownHook(new Thread("capsule-daemon-shutdown") {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        });
+        handleSignals();
+
+        try {
+            DaemonAdapter.init(args);
+            started = true; // 'start' may well never return, e.g. with plain 'main' methods
+            DaemonAdapter.start();
+        } catch (Throwable t) {
+            t.printStackTrace();
+            System.exit(1);
+        }
+
+        // Like jsvc, keep the JVM running until it's told to stop
+        stopped.await();
+    }
+
+    private static void shutdown() {
+        if (!stopping.compareAndSet(false, true))
+            return;
+        try {
+            if (started) {
+                try {
+                    DaemonAdapter.stop();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+            DaemonAdapter.destroy();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        } finally {
+            pidFile.release();
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Runs {@code stop} and {@code destroy} straight from the stop signals, while the JVM (and e.g. the flight recorder)
+     * is still fully functional; {@code SIGHUP} is ignored.
+     * {@code sun.misc.Signal} is used reflectively as it's not available everywhere.
+     */
+    private static void handleSignals() {
+        try {
+            final Class<?> signalClass = Class.forName("sun.misc.Signal");
+            final Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+            final Method handle = signalClass.getMethod("handle", signalClass, handlerClass);
+            final Constructor<?> newSignal = signalClass.getConstructor(String.class);
+
+            final Object stopHandler = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class[]{handlerClass}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getDeclaringClass() == Object.class)
+                        return method.invoke(this, args);
+                    new Thread("capsule-daemon-stop") {
+                        @Override
+                        public void run() {
+                            shutdown();
+                            System.exit(0);
+                        }
+                    }.start();
+                    return null;
+                }
+            });
+            for (final String s : STOP_SIGNALS)
+                handle.invoke(null, newSignal.newInstance(s), stopHandler);
+            handle.invoke(null, newSignal.newInstance("HUP"), handlerClass.getField("SIG_IGN").get(null));
+        } catch (Exception e) {
+            System.err.println("capsule-daemon: WARNING: can't handle signals, stopping through a shutdown hook: " + e);
+        }
+    }
+
+    /**
+     * The PID of the running daemon, or {@code null} if there's no PID file or if it's stale, i.e. not locked any more.
+     */
+    public static String readPid(Path pidFile) throws IOException {
+        return PidFile.isLocked(pidFile) ? PidFile.read(pidFile) : null;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.MonitorInfo;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * In-process diagnostics of the daemon JVM, rendered as plain text.
+ *
+ * @author circlespainter
+ */
+final class Diagnostics {
+
+    private static final String DIAGNOSTIC_COMMAND_MBEAN = "com.sun.management:type=DiagnosticCommand";
+
+    private Diagnostics() {
+    }
+
+    static String threadDump() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Thread dump at ").append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date())).append('\n');
+
+        final long[] deadlocked = threads.findDeadlockedThreads();
+        if (deadlocked != null) {
+            sb.append("Deadlocked threads:");
+            for (final long id : deadlocked)
+                sb.append(' ').append(id);
+            sb.append('\n');
+        }
+        sb.append('\n');
+
+        for (final ThreadInfo ti : threads.dumpAllThreads(threads.isObjectMonitorUsageSupported(), threads.isSynchronizerUsageSupported()))
+            appendThread(sb, ti);
+        return sb.toString();
+    }
+
+    private static void appendThread(StringBuilder sb, ThreadInfo ti) {
+        sb.append('"').append(ti.getThreadName()).append("\" Id=").append(ti.getThreadId()).append(' ').append(ti.getThreadState());
+        if (ti.getLockName() != null)
+            sb.append(" on ").append(ti.getLockName());
+        if (ti.getLockOwnerName() != null)
+            sb.append(" owned by \"").append(ti.getLockOwnerName()).append("\" Id=").append(ti.getLockOwnerId());
+        if (ti.isSuspended())
+            sb.append(" (suspended)");
+        if (ti.isInNative())
+            sb.append(" (in native)");
+        sb.append('\n');
+
+        final StackTraceElement[] stack = ti.getStackTrace();
+        for (int i = 0; i < stack.length; i++) {
+            sb.append("\tat ").append(stack[i]).append('\n');
+            if (i == 0 && ti.getLockInfo() != null) {
+                switch (ti.getThreadState()) {
+                    case BLOCKED:
+                        sb.append("\t-  blocked on ").append(ti.getLockInfo()).append('\n');
+                        break;
+                    case WAITING:
+                    case TIMED_WAITING:
+                        sb.append("\t-  waiting on ").append(ti.getLockInfo()).append('\n');
+                        break;
+                    default:
+                }
+            }
+            for (final MonitorInfo mi : ti.getLockedMonitors()) {
+                if (mi.getLockedStackDepth() == i)
+                    sb.append("\t-  locked ").append(mi).append('\n');
+            }
+        }
+
+        final LockInfo[] syncs = ti.getLockedSynchronizers();
+        if (syncs.length > 0) {
+            sb.append("\n\tNumber of locked synchronizers = ").append(syncs.length).append('\n');
+            for (final LockInfo li : syncs)
+                sb.append("\t- ").append(li).append('\n');
+        }
+        sb.append('\n');
+    }
+
+    static String heapHistogram() throws JMException {
+        return (String) ManagementFactory.getPlatformMBeanServer().invoke(
+            new ObjectName(DIAGNOSTIC_COMMAND_MBEAN),
+            "gcClassHistogram",
+            new Object[]{new String[0]},
+            new String[]{String[].class.getName()});
+    }
+
+    static String gc() {
+        final long start = System.nanoTime();
+        System.gc();
+        return "GC completed in " + (System.nanoTime() - start) / 1000000 + " ms\n";
+    }
+
+    static String gcSummary() {
+        final StringBuilder sb = new StringBuilder();
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            sb.append("gc.").append(gc.getName().replace(' ', '_')).append(".count=").append(gc.getCollectionCount())
+                .append("\ngc.").append(gc.getName().replace(' ', '_')).append(".timeMillis=").append(gc.getCollectionTime()).append('\n');
+        return sb.toString();
+    }
+
+    static String metrics() {
+        final RuntimeMXBean rt = ManagementFactory.getRuntimeMXBean();
+        final MemoryMXBean mem = ManagementFactory.getMemoryMXBean();
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("state=").append(DaemonAdapter.describeState()).append('\n');
+        sb.append("uptimeMillis=").append(rt.getUptime()).append('\n');
+        appendUsage(sb, "heap", mem.getHeapMemoryUsage());
+        appendUsage(sb, "nonHeap", mem.getNonHeapMemoryUsage());
+        sb.append("threads.live=").append(threads.getThreadCount()).append('\n');
+        sb.append("threads.daemon=").append(threads.getDaemonThreadCount()).append('\n');
+        sb.append("threads.peak=").append(threads.getPeakThreadCount()).append('\n');
+        sb.append("classes.loaded=").append(ManagementFactory.getClassLoadingMXBean().getLoadedClassCount()).append('\n');
+        sb.append("load.systemAverage=").append(ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage()).append('\n');
+        sb.append(gcSummary());
+        return sb.toString();
+    }
+
+    private static void appendUsage(StringBuilder sb, String name, MemoryUsage u) {
+        sb.append(name).append(".used=").append(u.getUsed()).append('\n');
+        sb.append(name).append(".committed=").append(u.getCommitted()).append('\n');
+        sb.append(name).append(".max=").append(u.getMax()).append('\n');
+    }
+}
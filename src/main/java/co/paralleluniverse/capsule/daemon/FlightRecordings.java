@@ -0,0 +1,94 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Management of the daemon's continuous JDK Flight Recorder recording and of its bounded dump directory.
+ *
+ * @author circlespainter
+ */
+public final class FlightRecordings {
+
+    public static final String RECORDING_NAME = "capsule-daemon";
+
+    private static final String EXT = ".jfr";
+    private static final String DIAGNOSTIC_COMMAND_MBEAN = "com.sun.management:type=DiagnosticCommand";
+
+    private FlightRecordings() {
+    }
+
+    /**
+     * The JVM option starting the continuous, size- and age-bounded recording.
+     */
+    public static String startOption(String maxSize, String maxAge) {
+        return "-XX:StartFlightRecording=name=" + RECORDING_NAME + ",disk=true,maxsize=" + maxSize + ",maxage=" + maxAge;
+    }
+
+    /**
+     * A new timestamped recording file in {@code dir}.
+     */
+    public static Path newRecordingFile(Path dir, String reason) throws IOException {
+        Files.createDirectories(dir);
+        final String ts = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        return dir.resolve(RECORDING_NAME + "-" + ts + "-" + reason + EXT);
+    }
+
+    /**
+     * Deletes the oldest recordings in {@code dir} until at most {@code keep} are left.
+     */
+    public static void evict(Path dir, int keep) throws IOException {
+        if (!Files.isDirectory(dir))
+            return;
+
+        final List<Path> recordings = new ArrayList<>();
+        try (final DirectoryStream<Path> ds = Files.newDirectoryStream(dir, RECORDING_NAME + "-*" + EXT)) {
+            for (final Path p : ds)
+                recordings.add(p);
+        }
+        if (recordings.size() <= keep)
+            return;
+
+        Collections.sort(recordings, new Comparator<Path>() {
+            @Override
+            public int compare(Path p1, Path p2) {
+                return p1.getFileName().toString().compareTo(p2.getFileName().toString()); // Names start with the timestamp
+            }
+        });
+        for (final Path p : recordings.subList(0, recordings.size() - keep))
+            Files.deleteIfExists(p);
+    }
+
+    /**
+     * Dumps the running recording to a new timestamped file in {@code dir}, keeping at most {@code maxFiles} recordings.
+     */
+    static Path dump(Path dir, int maxFiles, String reason) throws IOException, JMException {
+        evict(dir, Math.max(maxFiles - 1, 0));
+        final Path file = newRecordingFile(dir, reason);
+        ManagementFactory.getPlatformMBeanServer().invoke(
+            new ObjectName(DIAGNOSTIC_COMMAND_MBEAN),
+            "jfrDump",
+            new Object[]{new String[]{"name=" + RECORDING_NAME, "filename=" + file.toAbsolutePath()}},
+            new String[]{String[].class.getName()});
+        return file;
+    }
+}
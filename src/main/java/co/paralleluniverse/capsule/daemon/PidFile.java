@@ -0,0 +1,100 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A PID file kept locked for the whole lifetime of the process owning it.
+ *
+ * @author circlespainter
+ */
+final class PidFile {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final Path path;
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    private PidFile(Path path, FileChannel channel, FileLock lock) {
+        this.path = path;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    static PidFile lock(Path path) throws IOException {
+        if (path.getParent() != null)
+            Files.createDirectories(path.getParent());
+        final FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final FileLock l = ch.tryLock();
+        if (l == null) {
+            ch.close();
+            throw new IllegalStateException("Already running: PID file " + path + " is locked by another process");
+        }
+        ch.truncate(0);
+        ch.write(ByteBuffer.wrap((pid() + "\n").getBytes(ASCII)));
+        ch.force(true);
+        return new PidFile(path, ch, l);
+    }
+
+    static String read(Path path) throws IOException {
+        if (!Files.exists(path))
+            return null;
+        final String pid = new String(Files.readAllBytes(path), ASCII).trim();
+        return pid.isEmpty() ? null : pid;
+    }
+
+    /**
+     * Whether a live process holds the lock of {@code path}: a file left behind by a killed process isn't locked.
+     * Must not be called by the process holding the lock, as closing a channel releases its locks on some systems.
+     */
+    static boolean isLocked(Path path) throws IOException {
+        if (!Files.exists(path))
+            return false;
+        try (final FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            final FileLock l = ch.tryLock(0, Long.MAX_VALUE, true); // Shared, so that read access is enough
+            if (l == null)
+                return true;
+            l.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        }
+    }
+
+    static String pid() {
+        final String name = ManagementFactory.getRuntimeMXBean().getName(); // "<pid>@<host>" on HotSpot
+        final int at = name.indexOf('@');
+        return at > 0 ? name.substring(0, at) : name;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    void release() {
+        try {
+            Files.deleteIfExists(path);
+            lock.release();
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("WARNING: could not release PID file " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client of the service manager notification protocol ({@code sd_notify}): readiness, stopping, status and watchdog
+ * heartbeats are sent to the {@code NOTIFY_SOCKET} datagram socket when the service manager has set it.
+ * <p>
+ * Java can't send datagrams to Unix domain sockets, so notifications are written, one per line with tab-separated
+ * assignments, to a single long-lived helper process that sends them on behalf of this process (which needs
+ * {@code NotifyAccess=all} in the unit): a small Python sender or, failing that, a shell loop running
+ * {@code systemd-notify}, which is less reliable as each notification then comes from a short-lived process.
+ *
+ * @author circlespainter
+ */
+final class ServiceNotifier {
+
+    static final String ENV_NOTIFY_SOCKET = "NOTIFY_SOCKET";
+
+    private static final String ENV_WATCHDOG_USEC = "WATCHDOG_USEC";
+    private static final String ENV_WATCHDOG_PID = "WATCHDOG_PID";
+    private static final String[] PYTHON_PATHS = new String[]{"/usr/bin/python3", "/bin/python3"};
+    private static final String[] SYSTEMD_NOTIFY_PATHS = new String[]{"/bin/systemd-notify", "/usr/bin/systemd-notify"};
+    private static final String PYTHON_SENDER
+        = "import os, socket, sys\n"
+        + "a = os.environ['" + ENV_NOTIFY_SOCKET + "']\n"
+        + "if a.startswith('@'):\n"
+        + "    a = '\\0' + a[1:]\n" // Abstract namespace
+        + "s = socket.socket(socket.AF_UNIX, socket.SOCK_DGRAM)\n"
+        + "for l in iter(sys.stdin.readline, ''):\n"
+        + "    try:\n"
+        + "        s.sendto(l.rstrip('\\n').replace('\\t', '\\n').encode('utf-8'), a)\n"
+        + "    except OSError as e:\n"
+        + "        sys.stderr.write('capsule-daemon: WARNING: could not notify the service manager: %s\\n' % e)\n";
+    private static final String SYSTEMD_NOTIFY_SENDER
+        = "t=$(printf '\\t'); set -f; while IFS= read -r l; do IFS=$t; \"$0\" $l; unset IFS; done";
+
+    private static final ServiceNotifier instance = new ServiceNotifier(System.getenv(), null);
+
+    private final Map<String, String> env;
+    private List<String> helperCmd;
+    private Process helper;
+    private Writer helperIn;
+    private volatile boolean disabled;
+    private Thread heartbeat;
+
+    /**
+     * @param helperCmd the helper's command line, or {@code null} to look for one
+     */
+    ServiceNotifier(Map<String, String> env, List<String> helperCmd) {
+        this.env = env;
+        this.helperCmd = helperCmd;
+    }
+
+    static ServiceNotifier get() {
+        return instance;
+    }
+
+    boolean isEnabled() {
+        return !disabled && env.get(ENV_NOTIFY_SOCKET) != null;
+    }
+
+    /**
+     * Also tells the service manager the main PID, as the service might have been started through a launcher.
+     */
+    void ready(String status) {
+        send("READY=1", "MAINPID=" + PidFile.pid(), "STATUS=" + sanitize(status));
+    }
+
+    void stopping(String status) {
+        send("STOPPING=1", "STATUS=" + sanitize(status));
+    }
+
+    void status(String status) {
+        send("STATUS=" + sanitize(status));
+    }
+
+    /**
+     * Sends {@code WATCHDOG=1} at half the interval the service manager expects, if it expects any.
+     */
+    synchronized void startHeartbeat() {
+        final String usec = env.get(ENV_WATCHDOG_USEC);
+        final String pid = env.get(ENV_WATCHDOG_PID);
+        if (heartbeat != null || !isEnabled() || usec == null || (pid != null && !pid.equals(PidFile.pid())))
+            return;
+
+        final long intervalMillis;
+        try {
+            intervalMillis = Math.max(1, TimeUnit.MICROSECONDS.toMillis(Long.parseLong(usec.trim())) / 2);
+        } catch (NumberFormatException e) {
+            System.err.println("capsule-daemon: WARNING: invalid " + ENV_WATCHDOG_USEC + " '" + usec + "', not sending heartbeats");
+            return;
+        }
+        heartbeat = new Thread("capsule-daemon-heartbeat") {
+            @Override
+            public void run() {
+                while (beat(this)) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+
+    /**
+     * @return {@code false} if {@code t} has been stopped, which is checked under the lock so that no heartbeat is sent
+     * after {@link #stopHeartbeat()} has returned
+     */
+    private synchronized boolean beat(Thread t) {
+        if (heartbeat != t || !isEnabled())
+            return false;
+        send("WATCHDOG=1");
+        return true;
+    }
+
+    synchronized void stopHeartbeat() {
+        if (heartbeat != null)
+            heartbeat.interrupt();
+        heartbeat = null;
+    }
+
+    /**
+     * Stops the helper once it has sent the notifications written so far.
+     */
+    void close() throws InterruptedException {
+        stopHeartbeat();
+        final Process p;
+        synchronized (this) {
+            disabled = true;
+            p = helper;
+            if (helperIn != null) {
+                try {
+                    helperIn.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        if (p != null)
+            p.waitFor();
+    }
+
+    private synchronized void send(String... assignments) {
+        if (!isEnabled())
+            return;
+        try {
+            if (helper == null && !startHelper())
+                return;
+            final StringBuilder sb = new StringBuilder();
+            for (final String a : assignments)
+                sb.append(sb.length() > 0 ? "\t" : "").append(a);
+            helperIn.write(sb.append('\n').toString());
+            helperIn.flush();
+        } catch (IOException e) {
+            disabled = true;
+            System.err.println("capsule-daemon: WARNING: could not notify the service manager: " + e);
+        }
+    }
+
+    private boolean startHelper() throws IOException {
+        if (helperCmd == null) {
+            final String python = findExecutable(PYTHON_PATHS);
+            final String systemdNotify = findExecutable(SYSTEMD_NOTIFY_PATHS);
+            if (python != null)
+                helperCmd = Arrays.asList(python, "-c", PYTHON_SENDER);
+            else if (systemdNotify != null) {
+                System.err.println("capsule-daemon: WARNING: 'python3' wasn't found, notifying the service manager through 'systemd-notify'");
+                helperCmd = Arrays.asList("sh", "-c", SYSTEMD_NOTIFY_SENDER, systemdNotify);
+            } else {
+                disabled = true;
+                System.err.println("capsule-daemon: WARNING: " + ENV_NOTIFY_SOCKET + " is set but neither 'python3' nor 'systemd-notify' were found, not notifying the service manager");
+                return false;
+            }
+        }
+        final ProcessBuilder pb = new ProcessBuilder(helperCmd).redirectOutput(ProcessBuilder.Redirect.INHERIT).redirectError(ProcessBuilder.Redirect.INHERIT);
+        pb.environment().put(ENV_NOTIFY_SOCKET, env.get(ENV_NOTIFY_SOCKET));
+        helper = pb.start();
+        helperIn = new OutputStreamWriter(helper.getOutputStream(), Charset.forName("UTF-8"));
+        return true;
+    }
+
+    /**
+     * Tabs and newlines would split the assignment.
+     */
+    private static String sanitize(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String findExecutable(String[] paths) {
+        for (final String p : paths) {
+            if (Files.isExecutable(Paths.get(p)))
+                return p;
+        }
+        return null;
+    }
+}
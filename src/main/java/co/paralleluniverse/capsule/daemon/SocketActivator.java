@@ -0,0 +1,292 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the service's declared listening socket and runs the service, whose command line is given as arguments, only
+ * while it's needed: it's started upon the first connection and stopped once no connection has been open for
+ * {@code Daemon-Idle-Secs}, until the next one.
+ * <p>
+ * This is the fallback for when no service manager can hand the socket over to the service (see
+ * {@link DaemonAdapter#activationChannel()}), which Java can't do for a child process: the service listens on a private
+ * loopback port instead and connections are relayed to it, so that it only sees loopback peers. A connection is held
+ * until the service accepts it; as the service is only stopped here, and while no connection is being relayed, no
+ * connection is dropped by a stop and only a refused one, which the service hasn't seen, is retried.
+ *
+ * @author circlespainter
+ */
+public final class SocketActivator {
+
+    private static final long START_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    private static final long CONNECT_RETRY_MILLIS = 50;
+    private static final long IDLE_CHECK_INTERVAL_MILLIS = 1000;
+    private static final int BUFFER_SIZE = 8192;
+    private static final long RELAY_STACK_SIZE = 256 * 1024;
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private final List<String> command;
+    private final ExecutorService relays;
+    private Service service;
+    private int open;
+    private long lastActivity = System.nanoTime();
+    private boolean stopping;
+
+    private SocketActivator(List<String> command) {
+        this.command = command;
+        // Two threads per connection; idle ones don't linger
+        this.relays = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(null, r, "capsule-daemon-relay-" + count.incrementAndGet(), RELAY_STACK_SIZE);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static void main(String[] args) throws IOException {
+        final String pidFileName = System.getProperty(DaemonLauncher.PROP_PID_FILE);
+        final String address = System.getProperty(DaemonAdapter.PROP_SOCKET);
+        if (pidFileName == null || address == null || args.length == 0)
+            throw new IllegalStateException("Usage: java -D" + DaemonLauncher.PROP_PID_FILE + "=<file> -D" + DaemonAdapter.PROP_SOCKET + "=[host:]port "
+                + "[-D" + DaemonAdapter.PROP_IDLE_SECS + "=<secs>] " + SocketActivator.class.getName() + " <service command>");
+
+        final ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(ActivationSocket.parseAddress(address));
+        final PidFile pidFile = PidFile.lock(Paths.get(pidFileName)); // Only once listening, so that it signals readiness
+        final SocketActivator activator = new SocketActivator(Arrays.asList(args));
+        Runtime.getRuntime().addShutdownHook(new Thread("capsule-daemon-shutdown") {
+            @Override
+            public void run() {
+                activator.shutdown();
+                pidFile.release();
+            }
+        });
+        final Long idleSecs = Long.getLong(DaemonAdapter.PROP_IDLE_SECS);
+        if (idleSecs != null && idleSecs > 0)
+            activator.stopWhenIdle(idleSecs);
+        System.err.println("capsule-daemon: listening on " + server.getLocalSocketAddress() + ", the service will be started upon connection");
+        ServiceNotifier.get().ready("listening on " + server.getLocalSocketAddress());
+        ServiceNotifier.get().startHeartbeat();
+
+        while (true) {
+            final Socket client = server.accept();
+            activator.opened();
+            activator.relays.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        activator.serve(client);
+                    } finally {
+                        activator.closed();
+                    }
+                }
+            });
+        }
+    }
+
+    private void serve(final Socket client) {
+        final Socket backend;
+        try {
+            backend = connect();
+        } catch (IOException | InterruptedException e) {
+            System.err.println("capsule-daemon: WARNING: dropping connection from " + client.getRemoteSocketAddress() + ": " + e.getMessage());
+            close(client);
+            return;
+        }
+
+        final Future<?> upstream = relays.submit(new Runnable() {
+            @Override
+            public void run() {
+                relay(client, backend);
+            }
+        });
+        relay(backend, client);
+        try {
+            upstream.get();
+        } catch (InterruptedException | ExecutionException ignored) {
+        }
+        close(client);
+        close(backend);
+    }
+
+    /**
+     * Copies {@code from} to {@code to}, propagating the half-close; an error ends the connection in both directions.
+     */
+    private static void relay(Socket from, Socket to) {
+        try {
+            final InputStream in = from.getInputStream();
+            final OutputStream out = to.getOutputStream();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            for (int n; (n = in.read(buffer)) != -1; )
+                out.write(buffer, 0, n);
+            to.shutdownOutput();
+        } catch (IOException e) {
+            close(from);
+            close(to);
+        }
+    }
+
+    /**
+     * Connects to the service, starting it if needed; a refused connection, which the service hasn't seen, is retried
+     * until it listens.
+     */
+    private Socket connect() throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            final Service s = ensureStarted();
+            try {
+                final Socket ret = new Socket(LOOPBACK, s.port);
+                s.accepting = true;
+                return ret;
+            } catch (ConnectException e) {
+                final Integer exitCode = exitValue(s.process);
+                if (exitCode != null && !s.accepting)
+                    throw new IOException("the service exited with code " + exitCode + " before accepting connections");
+                if (System.currentTimeMillis() > deadline)
+                    throw new IOException("the service isn't accepting connections on port " + s.port + " after " + START_TIMEOUT_MILLIS + " ms");
+                if (exitCode == null)
+                    Thread.sleep(CONNECT_RETRY_MILLIS); // Not listening yet
+                // Otherwise it has exited since, and a new instance is started
+            }
+        }
+    }
+
+    private synchronized Service ensureStarted() throws IOException {
+        if (stopping)
+            throw new IOException("shutting down");
+        if (service != null) {
+            final Integer exitCode = exitValue(service.process);
+            if (exitCode == null)
+                return service;
+            System.err.println("capsule-daemon: the service exited with code " + exitCode);
+        }
+
+        final int port = freePort();
+        final List<String> cmd = new ArrayList<>(command);
+        cmd.add(1, "-D" + DaemonAdapter.PROP_SOCKET + "=[" + LOOPBACK.getHostAddress() + "]:" + port); // Right after the Java executable
+        System.err.println("capsule-daemon: starting the service on port " + port);
+        final ProcessBuilder pb = new ProcessBuilder(cmd).inheritIO();
+        pb.environment().remove(ServiceNotifier.ENV_NOTIFY_SOCKET); // The activator is the service as far as the service manager is concerned
+        service = new Service(pb.start(), port);
+        return service;
+    }
+
+    private synchronized void opened() {
+        open++;
+    }
+
+    private synchronized void closed() {
+        open--;
+        lastActivity = System.nanoTime();
+    }
+
+    private void stopWhenIdle(final long idleSecs) {
+        final Thread t = new Thread("capsule-daemon-idle") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(IDLE_CHECK_INTERVAL_MILLIS);
+                        stopIfIdle(idleSecs);
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops the service under the lock, so that new connections wait for it to have stopped and then start it again.
+     */
+    private synchronized void stopIfIdle(long idleSecs) throws InterruptedException {
+        if (stopping || service == null || open > 0 || exitValue(service.process) != null
+            || System.nanoTime() - lastActivity < TimeUnit.SECONDS.toNanos(idleSecs))
+            return;
+        System.err.println("capsule-daemon: no connections for " + idleSecs + " seconds, stopping the service");
+        service.process.destroy(); // SIGTERM, stopping the service gracefully
+        service.process.waitFor();
+        service = null;
+    }
+
+    private void shutdown() {
+        final ServiceNotifier notifier = ServiceNotifier.get();
+        notifier.stopHeartbeat();
+        notifier.stopping("stopping");
+        final Process p;
+        synchronized (this) {
+            stopping = true;
+            p = service != null ? service.process : null;
+        }
+        try {
+            if (p != null) {
+                p.destroy(); // SIGTERM, stopping the service gracefully
+                p.waitFor();
+            }
+            notifier.close();
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (final ServerSocket s = new ServerSocket(0, 1, LOOPBACK)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static Integer exitValue(Process p) {
+        try {
+            return p.exitValue();
+        } catch (IllegalThreadStateException e) {
+            return null; // Still running
+        }
+    }
+
+    private static void close(Socket s) {
+        try {
+            s.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class Service {
+        final Process process;
+        final int port;
+        volatile boolean accepting;
+
+        Service(Process process, int port) {
+            this.process = process;
+            this.port = port;
+        }
+    }
+}
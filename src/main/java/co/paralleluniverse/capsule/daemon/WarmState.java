@@ -0,0 +1,118 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Named, memory-mapped state files that survive daemon restarts.
+ * <p>
+ * Each file has a header holding a format marker, the application-defined version of the content, its length and its
+ * CRC32; files are written to a temporary location and atomically moved in place, and files whose header, version or
+ * checksum don't match are rejected when mapped.
+ *
+ * @author circlespainter
+ */
+final class WarmState {
+
+    private static final int MAGIC = 0x43445753; // "CDWS"
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 32; // magic, format, version, reserved (ints); length, crc (longs)
+    private static final String EXT = ".state";
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9._-]+");
+
+    private WarmState() {
+    }
+
+    static void write(Path dir, String name, int version, ByteBuffer content) throws IOException {
+        final Path f = file(dir, name);
+        final Path tmp = f.resolveSibling(f.getFileName() + ".tmp");
+        final ByteBuffer src = content.duplicate();
+        final int length = src.remaining();
+        if (length > Integer.MAX_VALUE - HEADER_SIZE)
+            throw new IllegalArgumentException("Warm state '" + name + "' is too large: " + length + " bytes");
+
+        Files.createDirectories(dir);
+        try (final FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + length);
+            mb.position(HEADER_SIZE);
+            mb.put(src);
+            mb.position(HEADER_SIZE);
+            final long crc = crc(mb);
+            mb.position(0);
+            mb.putInt(MAGIC).putInt(FORMAT).putInt(version).putInt(0).putLong(length).putLong(crc);
+            mb.force();
+        }
+        Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static ByteBuffer map(Path dir, String name, int version) throws IOException {
+        final Path f = file(dir, name);
+        if (!Files.exists(f))
+            return null;
+
+        try (final FileChannel ch = FileChannel.open(f, StandardOpenOption.READ)) {
+            final long size = ch.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+                return reject(name, "bad size " + size);
+            final MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_ONLY, 0, size); // Stays valid after closing the channel
+            if (mb.getInt() != MAGIC || mb.getInt() != FORMAT)
+                return reject(name, "unknown format");
+            final int v = mb.getInt();
+            if (v != version)
+                return reject(name, "version " + v + " doesn't match the expected " + version);
+            mb.getInt();
+            final long length = mb.getLong();
+            final long crc = mb.getLong();
+            if (HEADER_SIZE + length != size)
+                return reject(name, "truncated");
+
+            mb.position(HEADER_SIZE);
+            final ByteBuffer content = mb.slice();
+            if (crc(content.duplicate()) != crc)
+                return reject(name, "checksum mismatch");
+            return content;
+        }
+    }
+
+    static void delete(Path dir, String name) throws IOException {
+        Files.deleteIfExists(file(dir, name));
+    }
+
+    private static Path file(Path dir, String name) {
+        if (!NAME.matcher(name).matches())
+            throw new IllegalArgumentException("Invalid warm state name '" + name + "', must match " + NAME);
+        return dir.resolve(name + EXT);
+    }
+
+    private static ByteBuffer reject(String name, String reason) {
+        System.err.println("capsule-daemon: WARNING: rejecting warm state '" + name + "': " + reason);
+        return null;
+    }
+
+    private static long crc(ByteBuffer bb) {
+        final CRC32 crc = new CRC32();
+        final byte[] buf = new byte[64 * 1024];
+        while (bb.hasRemaining()) {
+            final int n = Math.min(buf.length, bb.remaining());
+            bb.get(buf, 0, n);
+            crc.update(buf, 0, n);
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects a daemon that is alive but not working: long stalls of a heartbeat, deadlocks and GC thrashing.
+ * <p>
+ * When one is detected, a thread dump and a GC summary are written to disk and the JVM is halted with a distinct exit
+ * code, so that its supervisor ({@code jsvc} or the service manager) replaces it rather than it staying half-dead.
+ *
+ * @author circlespainter
+ */
+final class Watchdog implements Runnable {
+
+    private static final long MAX_INTERVAL_MILLIS = 1000;
+    private static final long HALT_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static Watchdog instance;
+
+    private final Path dir;
+    private final long stallMillis;
+    private final long gcPercent;
+    private final long gcWindowNanos;
+    private final int exitCode;
+    private final long intervalMillis;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final Deque<long[]> gcSamples = new ArrayDeque<>(); // {nanoTime, total GC millis}
+    private volatile boolean stopped;
+
+    private Watchdog(Path dir, long stallMillis, long gcPercent, long gcWindowSecs, int exitCode) {
+        this.dir = dir;
+        this.stallMillis = stallMillis;
+        this.gcPercent = gcPercent;
+        this.gcWindowNanos = TimeUnit.SECONDS.toNanos(gcWindowSecs);
+        this.exitCode = exitCode;
+        this.intervalMillis = Math.max(1, Math.min(MAX_INTERVAL_MILLIS, stallMillis / 4));
+    }
+
+    static synchronized void start(Path dir, long stallMillis, long gcPercent, long gcWindowSecs, int exitCode) {
+        if (instance != null)
+            return;
+        instance = new Watchdog(dir, stallMillis, gcPercent, gcWindowSecs, exitCode);
+        final Thread t = new Thread(instance, "capsule-daemon-watchdog");
+        t.setDaemon(true);
+        t.setPriority(Thread.MAX_PRIORITY);
+        t.start();
+    }
+
+    static synchronized void shutdown() {
+        if (instance != null)
+            instance.stopped = true;
+        instance = null;
+    }
+
+    @Override
+    public void run() {
+        long last = System.nanoTime();
+        while (!stopped) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (stopped)
+                return;
+
+            final long now = System.nanoTime();
+            final long lagMillis = TimeUnit.NANOSECONDS.toMillis(now - last) - intervalMillis;
+            last = now;
+            if (lagMillis >= stallMillis)
+                trip("heartbeat stalled for " + lagMillis + " ms");
+
+            final long[] deadlocked = threads.findDeadlockedThreads();
+            if (deadlocked != null)
+                trip("deadlock among threads " + Arrays.toString(deadlocked));
+
+            final long gcPct = gcPercent(now);
+            if (gcPct >= gcPercent)
+                trip(gcPct + "% of the last " + TimeUnit.NANOSECONDS.toSeconds(gcWindowNanos) + " seconds spent in GC");
+        }
+    }
+
+    /**
+     * The percentage of time spent in GC pauses over the last window, or -1 until a whole window has been observed.
+     */
+    private long gcPercent(long now) {
+        long gcMillis = 0;
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (isPauses(gc.getName()))
+                gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        gcSamples.addLast(new long[]{now, gcMillis});
+
+        // Keep the newest sample that is at least a window old as the reference
+        while (gcSamples.size() > 2 && now - secondOldest()[0] >= gcWindowNanos)
+            gcSamples.removeFirst();
+        final long[] oldest = gcSamples.peekFirst();
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(now - oldest[0]);
+        if (now - oldest[0] < gcWindowNanos || elapsedMillis == 0)
+            return -1;
+        return (gcMillis - oldest[1]) * 100 / elapsedMillis;
+    }
+
+    /**
+     * Whether a collector's time is spent in stop-the-world pauses rather than in concurrent cycles running alongside
+     * the application (e.g. "ZGC Cycles", "Shenandoah Cycles", "ConcurrentMarkSweep", "G1 Concurrent GC"), which
+     * would make a healthy service using a concurrent collector look like it's thrashing.
+     */
+    static boolean isPauses(String collector) {
+        return !collector.contains("Cycles") && !collector.contains("Concurrent") && !collector.equals("ZGC");
+    }
+
+    private long[] secondOldest() {
+        final Iterator<long[]> it = gcSamples.iterator();
+        it.next();
+        return it.next();
+    }
+
+    private void trip(String reason) {
+        stopped = true;
+        System.err.println("capsule-daemon: watchdog: " + reason + ", exiting with code " + exitCode);
+
+        // Capturing diagnostics of a sick JVM might itself get stuck
+        final Thread halter = new Thread("capsule-daemon-watchdog-halt") {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(HALT_GRACE_MILLIS);
+                } catch (InterruptedException ignored) {
+                }
+                Runtime.getRuntime().halt(exitCode);
+            }
+        };
+        halter.setDaemon(true);
+        halter.start();
+
+        try {
+            Files.createDirectories(dir);
+            final Path f = dir.resolve("watchdog-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + ".txt");
+            final String report = "Reason: " + reason + "\n\n" + Diagnostics.metrics() + "\n" + Diagnostics.threadDump();
+            Files.write(f, report.getBytes(Charset.forName("UTF-8")));
+            System.err.println("capsule-daemon: watchdog: diagnostics written to " + f);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("capsule-daemon: WARNING: watchdog could not write diagnostics: " + e);
+        }
+        DaemonAdapter.dumpRecording("watchdog");
+
+        // Not exiting normally: shutdown hooks and 'stop' could hang as well
+        Runtime.getRuntime().halt(exitCode);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tracks connections to a local socket through the kernel's TCP tables, when available.
+ *
+ * @author circlespainter
+ */
+public class ActivationSocketTest {
+
+    private ServerSocketChannel server;
+    private int port;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ActivationSocket.bind("127.0.0.1:0");
+        port = server.socket().getLocalPort();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testParseAddress() {
+        assertEquals(new InetSocketAddress(8080), ActivationSocket.parseAddress("8080"));
+        assertEquals(new InetSocketAddress("127.0.0.1", 8080), ActivationSocket.parseAddress("127.0.0.1:8080"));
+        assertEquals(new InetSocketAddress("::1", 8080), ActivationSocket.parseAddress("[::1]:8080"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidAddress() {
+        ActivationSocket.parseAddress("localhost:http");
+    }
+
+    @Test
+    public void testConnections() throws IOException {
+        Assume.assumeTrue(Files.isDirectory(Paths.get("/proc/self/fd")));
+        final Set<String> closed = new HashSet<>();
+        assertFalse(ActivationSocket.isActive(port, closed));
+        assertEquals(0, ActivationSocket.owned(port));
+
+        final Socket client = new Socket("127.0.0.1", port);
+        assertTrue(ActivationSocket.isActive(port, closed)); // Queued
+        assertEquals(0, ActivationSocket.owned(port)); // The client's end isn't a connection to the port
+
+        final SocketChannel accepted = server.accept();
+        assertTrue(ActivationSocket.isActive(port, closed));
+        assertEquals(1, ActivationSocket.owned(port));
+
+        accepted.close(); // The service's end closes first, hence goes into TIME_WAIT
+        client.close();
+        assertEquals(0, ActivationSocket.owned(port));
+        assertTrue(ActivationSocket.isActive(port, closed)); // Closed since the last check
+        assertFalse(ActivationSocket.isActive(port, closed));
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author circlespainter
+ */
+public class ClasspathMergerTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Path dir;
+    private Path a;
+    private Path b;
+    private Path target;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("classpath-merger-test");
+        a = jar("a.jar", false,
+            "com/a/A.class", "a",
+            "shared.txt", "from a",
+            "META-INF/services/com.Service", "com.a.AService # a comment\n\ncom.Common\n",
+            "META-INF/versions/9/com/a/A.class", "a9",
+            "META-INF/A.SF", "signature");
+        b = jar("b.jar", true,
+            "com/b/B.class", "b",
+            "shared.txt", "from b",
+            "META-INF/services/com.Service", "com.b.BService\ncom.Common\n",
+            "META-INF/versions/9/com/b/B.class", "b9");
+        target = dir.resolve("merged.jar");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testStamp() throws IOException {
+        assertTrue(ClasspathMerger.merge(Arrays.asList(a, b), target));
+        assertFalse(ClasspathMerger.merge(Arrays.asList(a, b), target));
+
+        Files.setLastModifiedTime(b, FileTime.fromMillis(Files.getLastModifiedTime(b).toMillis() + 2000));
+        assertTrue(ClasspathMerger.merge(Arrays.asList(a, b), target));
+        assertFalse(ClasspathMerger.merge(Arrays.asList(a, b), target));
+
+        assertTrue(ClasspathMerger.merge(Arrays.asList(b, a), target)); // A different classpath order
+    }
+
+    @Test
+    public void testFirstEntryWins() throws IOException {
+        ClasspathMerger.merge(Arrays.asList(a, b), target);
+        assertEquals("from a", read(target, "shared.txt"));
+        assertEquals("a", read(target, "com/a/A.class"));
+        assertEquals("b", read(target, "com/b/B.class"));
+
+        ClasspathMerger.merge(Arrays.asList(b, a), target);
+        assertEquals("from b", read(target, "shared.txt"));
+    }
+
+    @Test
+    public void testServicesConcatenated() throws IOException {
+        ClasspathMerger.merge(Arrays.asList(a, b), target);
+        assertEquals("com.a.AService\ncom.Common\ncom.b.BService\n", read(target, "META-INF/services/com.Service"));
+    }
+
+    @Test
+    public void testStoredWithCrc() throws IOException {
+        ClasspathMerger.merge(Arrays.asList(a, b), target);
+        try (final ZipFile zip = new ZipFile(target.toFile())) {
+            for (final Enumeration<? extends ZipEntry> es = zip.entries(); es.hasMoreElements(); ) {
+                final ZipEntry e = es.nextElement();
+                assertEquals(e.getName(), ZipEntry.STORED, e.getMethod());
+                final byte[] content = readAll(zip.getInputStream(e));
+                final CRC32 crc = new CRC32();
+                crc.update(content, 0, content.length);
+                assertEquals(e.getName(), crc.getValue(), e.getCrc());
+                assertEquals(e.getName(), content.length, e.getSize());
+            }
+        }
+    }
+
+    @Test
+    public void testMetadata() throws IOException {
+        ClasspathMerger.merge(Arrays.asList(a, b), target);
+        try (final JarFile jar = new JarFile(target.toFile())) {
+            assertEquals("true", jar.getManifest().getMainAttributes().getValue("Multi-Release"));
+            assertNull(jar.getEntry("META-INF/A.SF"));
+            assertNull(jar.getEntry("META-INF/versions/9/com/a/A.class")); // a.jar isn't multi-release
+            assertNotNull(jar.getEntry("META-INF/versions/9/com/b/B.class"));
+        }
+    }
+
+    @Test
+    public void testNotMultiRelease() throws IOException {
+        ClasspathMerger.merge(Arrays.asList(a), target);
+        try (final JarFile jar = new JarFile(target.toFile())) {
+            assertNull(jar.getManifest().getMainAttributes().getValue("Multi-Release"));
+            assertNull(jar.getEntry("META-INF/versions/9/com/a/A.class"));
+        }
+    }
+
+    @Test
+    public void testDirectory() throws IOException {
+        final Path classes = dir.resolve("classes");
+        Files.createDirectories(classes.resolve("com/c"));
+        Files.write(classes.resolve("com/c/C.class"), "c".getBytes(UTF8));
+        Files.write(classes.resolve("shared.txt"), "from classes".getBytes(UTF8));
+
+        ClasspathMerger.merge(Arrays.asList(classes, a), target);
+        assertEquals("c", read(target, "com/c/C.class"));
+        assertEquals("from classes", read(target, "shared.txt"));
+        assertEquals("a", read(target, "com/a/A.class"));
+    }
+
+    private Path jar(String name, boolean multiRelease, String... entries) throws IOException {
+        final Manifest m = new Manifest();
+        m.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (multiRelease)
+            m.getMainAttributes().putValue("Multi-Release", "true");
+        final Path p = dir.resolve(name);
+        try (final JarOutputStream out = new JarOutputStream(Files.newOutputStream(p), m)) {
+            for (int i = 0; i < entries.length; i += 2) {
+                out.putNextEntry(new ZipEntry(entries[i]));
+                out.write(entries[i + 1].getBytes(UTF8));
+                out.closeEntry();
+            }
+        }
+        return p;
+    }
+
+    private static String read(Path jar, String name) throws IOException {
+        try (final ZipFile zip = new ZipFile(jar.toFile())) {
+            final ZipEntry e = zip.getEntry(name);
+            assertNotNull(name, e);
+            return new String(readAll(zip.getInputStream(e)), UTF8);
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        try (final InputStream in = is) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            for (int n; (n = in.read(buf)) != -1; )
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the notifier against a stub helper recording the notifications it's sent and, when {@code python3} is available,
+ * through its own sender against a real datagram socket.
+ *
+ * @author circlespainter
+ */
+public class ServiceNotifierTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String PYTHON = "/usr/bin/python3";
+    // Writes each datagram received on the socket, NUL-terminated, until 'STOPPING=1'
+    private static final String RECEIVER
+        = "import socket, sys\n"
+        + "a = sys.argv[1]\n"
+        + "s = socket.socket(socket.AF_UNIX, socket.SOCK_DGRAM)\n"
+        + "s.bind('\\0' + a[1:] if a.startswith('@') else a)\n"
+        + "print('bound', flush=True)\n"
+        + "with open(sys.argv[2], 'wb') as f:\n"
+        + "    while True:\n"
+        + "        d = s.recv(4096)\n"
+        + "        f.write(d + b'\\0')\n"
+        + "        if d.startswith(b'STOPPING=1'):\n"
+        + "            break\n";
+
+    private Path out;
+    private Map<String, String> env;
+
+    @Before
+    public void setUp() throws IOException {
+        out = Files.createTempFile("service-notifier-test", ".out");
+        Files.delete(out);
+        env = new HashMap<>();
+        env.put("NOTIFY_SOCKET", "/run/systemd/notify");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(out);
+    }
+
+    @Test
+    public void testLifecycle() throws Exception {
+        final ServiceNotifier n = notifier();
+        n.status("STARTING");
+        n.ready("STARTED (init 3 ms,\tstart\n250 ms)");
+        n.stopping("STOPPING");
+        n.close();
+
+        assertEquals(Arrays.asList(
+            "STATUS=STARTING",
+            "READY=1\tMAINPID=" + PidFile.pid() + "\tSTATUS=STARTED (init 3 ms, start 250 ms)",
+            "STOPPING=1\tSTATUS=STOPPING"), lines());
+    }
+
+    @Test
+    public void testHeartbeat() throws Exception {
+        env.put("WATCHDOG_USEC", "20000");
+        env.put("WATCHDOG_PID", PidFile.pid());
+        final ServiceNotifier n = notifier();
+        n.startHeartbeat();
+        Thread.sleep(200);
+        n.stopHeartbeat();
+        n.stopping("STOPPING");
+        n.close();
+
+        final List<String> lines = lines();
+        assertTrue(lines.toString(), lines.size() >= 3);
+        for (final String l : lines.subList(0, lines.size() - 1))
+            assertEquals("WATCHDOG=1", l);
+        assertEquals("STOPPING=1\tSTATUS=STOPPING", lines.get(lines.size() - 1));
+    }
+
+    @Test
+    public void testHeartbeatOtherPid() throws Exception {
+        env.put("WATCHDOG_USEC", "20000");
+        env.put("WATCHDOG_PID", "1");
+        final ServiceNotifier n = notifier();
+        n.startHeartbeat();
+        Thread.sleep(100);
+        n.status("STARTED");
+        n.close();
+
+        assertEquals(Arrays.asList("STATUS=STARTED"), lines());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        env.remove("NOTIFY_SOCKET");
+        env.put("WATCHDOG_USEC", "20000");
+        final ServiceNotifier n = notifier();
+        assertFalse(n.isEnabled());
+        n.startHeartbeat();
+        n.ready("STARTED");
+        Thread.sleep(100);
+        n.close();
+
+        assertFalse(Files.exists(out)); // The helper was never started
+    }
+
+    @Test
+    public void testSocket() throws Exception {
+        final Path socket = Files.createTempDirectory("service-notifier-test").resolve("notify");
+        try {
+            testReceiver(socket.toString());
+        } finally {
+            Files.deleteIfExists(socket);
+            Files.delete(socket.getParent());
+        }
+    }
+
+    @Test
+    public void testAbstractSocket() throws Exception {
+        testReceiver("@service-notifier-test-" + UUID.randomUUID());
+    }
+
+    private void testReceiver(String address) throws Exception {
+        Assume.assumeTrue(Files.isExecutable(Paths.get(PYTHON)));
+        env.put("NOTIFY_SOCKET", address);
+        final Process receiver = new ProcessBuilder(PYTHON, "-c", RECEIVER, address, out.toString()).redirectErrorStream(true).start();
+        try {
+            assertEquals("bound", new BufferedReader(new InputStreamReader(receiver.getInputStream(), UTF8)).readLine());
+            final ServiceNotifier n = new ServiceNotifier(env, null); // The real sender
+            n.status("STARTING");
+            n.ready("STARTED (init 3 ms,\tstart 250 ms)");
+            n.stopping("STOPPING");
+            n.close();
+            assertEquals(0, receiver.waitFor());
+        } finally {
+            receiver.destroy();
+        }
+
+        assertEquals(Arrays.asList(
+            "STATUS=STARTING",
+            "READY=1\nMAINPID=" + PidFile.pid() + "\nSTATUS=STARTED (init 3 ms, start 250 ms)",
+            "STOPPING=1\nSTATUS=STOPPING"),
+            Arrays.asList(new String(Files.readAllBytes(out), UTF8).split("\0")));
+    }
+
+    private ServiceNotifier notifier() {
+        return new ServiceNotifier(env, Arrays.asList("sh", "-c", "cat > '" + out + "'"));
+    }
+
+    private List<String> lines() throws IOException {
+        return Files.readAllLines(out, UTF8);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Capsule
+ * Copyright (c) 2016, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule.daemon;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author circlespainter
+ */
+public class WarmStateTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("warm-state-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (final DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (final Path f : ds)
+                Files.delete(f);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final ByteBuffer content = ByteBuffer.wrap("warm".getBytes(UTF8));
+        WarmState.write(dir, "cache-1.snapshot", 3, content);
+        assertEquals(4, content.remaining()); // The caller's buffer is left alone
+
+        final ByteBuffer mapped = WarmState.map(dir, "cache-1.snapshot", 3);
+        assertNotNull(mapped);
+        assertTrue(mapped.isReadOnly());
+        assertEquals("warm", string(mapped));
+        assertFalse(Files.exists(dir.resolve("cache-1.snapshot.state.tmp")));
+
+        WarmState.write(dir, "cache-1.snapshot", 3, ByteBuffer.wrap("warmer".getBytes(UTF8)));
+        assertEquals("warmer", string(WarmState.map(dir, "cache-1.snapshot", 3)));
+
+        WarmState.delete(dir, "cache-1.snapshot");
+        assertNull(WarmState.map(dir, "cache-1.snapshot", 3));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        WarmState.write(dir, "empty", 1, ByteBuffer.allocate(0));
+        final ByteBuffer mapped = WarmState.map(dir, "empty", 1);
+        assertNotNull(mapped);
+        assertEquals(0, mapped.remaining());
+    }
+
+    @Test
+    public void testMissing() throws IOException {
+        assertNull(WarmState.map(dir, "missing", 1));
+    }
+
+    @Test
+    public void testVersionMismatch() throws IOException {
+        WarmState.write(dir, "cache", 1, ByteBuffer.wrap("v1".getBytes(UTF8)));
+        assertNull(WarmState.map(dir, "cache", 2));
+        assertNotNull(WarmState.map(dir, "cache", 1));
+    }
+
+    @Test
+    public void testCorruptedCrc() throws IOException {
+        WarmState.write(dir, "cache", 1, ByteBuffer.wrap("content".getBytes(UTF8)));
+        final Path f = dir.resolve("cache.state");
+        final byte[] bytes = Files.readAllBytes(f);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(f, bytes);
+        assertNull(WarmState.map(dir, "cache", 1));
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        WarmState.write(dir, "cache", 1, ByteBuffer.wrap("content".getBytes(UTF8)));
+        final Path f = dir.resolve("cache.state");
+        try (final RandomAccessFile raf = new RandomAccessFile(f.toFile(), "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        assertNull(WarmState.map(dir, "cache", 1));
+
+        try (final RandomAccessFile raf = new RandomAccessFile(f.toFile(), "rw")) {
+            raf.setLength(10); // Not even a whole header
+        }
+        assertNull(WarmState.map(dir, "cache", 1));
+    }
+
+    @Test
+    public void testUnknownFormat() throws IOException {
+        Files.write(dir.resolve("cache.state"), new byte[64]);
+        assertNull(WarmState.map(dir, "cache", 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidNameWrite() throws IOException {
+        WarmState.write(dir, "../escape", 1, ByteBuffer.allocate(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidNameMap() throws IOException {
+        WarmState.map(dir, "a/b", 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyName() throws IOException {
+        WarmState.delete(dir, "");
+    }
+
+    private static String string(ByteBuffer bb) {
+        final byte[] bytes = new byte[bb.remaining()];
+        bb.duplicate().get(bytes);
+        return new String(bytes, UTF8);
+    }
+}